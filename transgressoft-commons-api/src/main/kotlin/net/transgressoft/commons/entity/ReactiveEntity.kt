@@ -17,6 +17,7 @@
 
 package net.transgressoft.commons.entity
 
+import net.transgressoft.commons.event.DeliveryMode
 import net.transgressoft.commons.event.MutationEvent
 import net.transgressoft.commons.event.TransEventSubscription
 import java.time.LocalDateTime
@@ -56,6 +57,12 @@ interface ReactiveEntity<K, R : ReactiveEntity<K, R>> :
     fun subscribe(action: Consumer<in MutationEvent<K, R>>): TransEventSubscription<in R, MutationEvent.Type, MutationEvent<K, R>> =
         subscribe(action::accept)
 
+    /**
+     * Subscribes to the mutations of the entity delivering them to the action as set by the given [DeliveryMode].
+     */
+    fun subscribe(deliveryMode: DeliveryMode, action: suspend (MutationEvent<K, R>) -> Unit):
+        TransEventSubscription<in R, MutationEvent.Type, MutationEvent<K, R>> = subscribe(action)
+
     fun subscribe(vararg eventTypes: MutationEvent.Type, action: Consumer<in MutationEvent<K, R>>):
         TransEventSubscription<in R, MutationEvent.Type, MutationEvent<K, R>>
 
@@ -0,0 +1,59 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+/**
+ * How a subscription delivers the events of a [TransEventPublisher] to its action
+ * when they arrive faster than the action processes them.
+ *
+ * @see TransEventPublisher.subscribe
+ */
+sealed interface DeliveryMode {
+
+    /**
+     * Every event is processed, one after another and in order. A slow action delays the
+     * following events but is never cancelled.
+     */
+    data object Sequential : DeliveryMode
+
+    /**
+     * A new event cancels the action still processing the previous one. Suited to actions that only
+     * care about the most recent event, since under load most of them are cancelled before completing.
+     */
+    data object Latest : DeliveryMode
+
+    /**
+     * Events arriving while the action is busy are skipped except the most recent one, which is
+     * processed once the action completes. Actions are never cancelled.
+     */
+    data object Conflated : DeliveryMode
+
+    /**
+     * Every event is processed by up to [parallelism] concurrent actions, holding up to [capacity] pending
+     * events for the subscription. With a [parallelism] greater than one the events may be processed out of order.
+     *
+     * @property capacity Number of events pending to be processed held by the subscription
+     * @property parallelism Maximum number of events processed at the same time
+     */
+    data class Buffered(val capacity: Int = 64, val parallelism: Int = 1) : DeliveryMode {
+        init {
+            require(capacity > 0) { "capacity must be positive" }
+            require(parallelism > 0) { "parallelism must be positive" }
+        }
+    }
+}
@@ -38,5 +38,25 @@ interface MutationEvent<K, R : ReactiveEntity<K, R>> : TransEvent<MutationEvent.
     }
 
     val newEntity: R
+
+    /**
+     * A copy of the entity before the mutation.
+     *
+     * @throws UnsupportedOperationException If the entity records its mutations as [changes] only, without a copy
+     */
     val oldEntity: R
+
+    /**
+     * A copy of the entity before the mutation, or `null` if the entity records its mutations
+     * as [changes] only, without a copy.
+     */
+    val oldEntityOrNull: R?
+        get() = oldEntity
+
+    /**
+     * The properties changed by the mutation, when recorded by the entity. Empty when they are unknown,
+     * in which case the change can only be found by comparing [oldEntity] and [newEntity].
+     */
+    val changes: List<PropertyChange>
+        get() = emptyList()
 }
\ No newline at end of file
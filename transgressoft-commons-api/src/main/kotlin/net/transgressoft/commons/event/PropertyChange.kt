@@ -0,0 +1,28 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+/**
+ * Record of the change of a single property of a [net.transgressoft.commons.entity.ReactiveEntity],
+ * carried by [MutationEvent]s so that subscribers can tell what changed without comparing entities.
+ *
+ * @property property The name of the property
+ * @property oldValue The value of the property before the change
+ * @property newValue The value of the property after the change
+ */
+data class PropertyChange(val property: String, val oldValue: Any?, val newValue: Any?)
@@ -27,12 +27,13 @@ import kotlinx.coroutines.flow.SharedFlow
  *
  * This interface represents the source of events in the reactive stream, publishing
  * events to interested subscribers. It serves as a bridge between the standard
- * Java Flow API and transgressoft-commons event system.
+ * Java Flow API and transgressoft-commons event system. Publishers are [AutoCloseable]
+ * so that the resources they hold are released once they are no longer needed.
  *
  * @param ET The specific type of [EventType] associated with this publisher
  * @param E The specific type of [TransEvent] published by this publisher
  */
-interface TransEventPublisher<ET : EventType, out E : TransEvent<ET>> : Flow.Publisher<@UnsafeVariance E> {
+interface TransEventPublisher<ET : EventType, out E : TransEvent<ET>> : Flow.Publisher<@UnsafeVariance E>, AutoCloseable {
 
     /**
      * A flow of entity change events that collectors can observe.
@@ -44,6 +45,18 @@ interface TransEventPublisher<ET : EventType, out E : TransEvent<ET>> : Flow.Pub
      */
     fun emitAsync(event: @UnsafeVariance E)
 
+    /**
+     * Publishes an event to all subscribers, suspending while the publisher can't take more events, so that
+     * producers that can afford to wait apply backpressure instead of events being queued or dropped.
+     */
+    suspend fun emit(event: @UnsafeVariance E) = emitAsync(event)
+
+    /**
+     * Publishes several events to all subscribers, asynchronously and in order. Publishers may deliver them
+     * together to the subscribers registered with [subscribeBatched], reducing the cost of each event.
+     */
+    fun emitAllAsync(events: Collection<@UnsafeVariance E>) = events.forEach(::emitAsync)
+
     fun subscribe(action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E>
 
     /**
@@ -54,7 +67,51 @@ interface TransEventPublisher<ET : EventType, out E : TransEvent<ET>> : Flow.Pub
 
     fun subscribe(vararg eventTypes: ET, action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E>
 
+    /**
+     * Subscribes to the events delivering them to the action as set by the given [DeliveryMode], so that
+     * subscribers choose between processing every event or only the most recent ones when they can't keep up.
+     * Publishers that don't support delivery modes ignore it.
+     *
+     * @param deliveryMode How the events are delivered to the action
+     * @param action The action to execute with each event
+     * @return A subscription that can be used to unsubscribe
+     */
+    fun subscribe(deliveryMode: DeliveryMode, action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E> =
+        subscribe(action)
+
+    /**
+     * Variant of [subscribe] with a [DeliveryMode] that only delivers the events of the given types.
+     */
+    fun subscribe(
+        deliveryMode: DeliveryMode,
+        vararg eventTypes: ET,
+        action: suspend (E) -> Unit
+    ): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E> = subscribe(*eventTypes, action = action)
+
+    /**
+     * Subscribes to the events in batches, in the order they were published. Each batch holds the events that
+     * were pending to be delivered together, which for bulk emissions amortizes the cost of delivering each of them.
+     * Publishers that don't support batching deliver each event in a batch of its own.
+     *
+     * @param action The action to execute with each batch of events
+     * @return A subscription that can be used to unsubscribe
+     */
+    fun subscribeBatched(action: suspend (List<E>) -> Unit): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E> =
+        subscribe { event -> action(listOf(event)) }
+
+    /**
+     * Java-style Consumer variant of [subscribeBatched].
+     */
+    fun subscribeBatched(action: Consumer<in List<E>>): TransEventSubscription<in TransEntity, ET, @UnsafeVariance E> =
+        subscribeBatched(action::accept)
+
     fun activateEvents(vararg types: @UnsafeVariance ET)
 
     fun disableEvents(vararg types: @UnsafeVariance ET)
+
+    /**
+     * Releases the resources of the publisher, cancelling its subscriptions. Publishers that
+     * don't hold resources of their own, such as in-process coroutines, do nothing by default.
+     */
+    override fun close() {}
 }
\ No newline at end of file
@@ -22,6 +22,7 @@ import net.transgressoft.commons.event.CrudEvent
 import net.transgressoft.commons.event.TransEventPublisher
 import java.util.*
 import java.util.function.Consumer
+import java.util.function.Function
 import java.util.function.Predicate
 
 /**
@@ -140,6 +141,72 @@ interface Registry<K, T: IdentifiableEntity<K>> : TransEventPublisher<CrudEvent.
      */
     fun findByUniqueId(uniqueId: String): Optional<out T>
 
+    /**
+     * Creates a secondary index with the given name, mapping each key extracted from the entities
+     * to all the entities that have it, so that they can be queried with [findByIndex] without a full scan.
+     *
+     * The index is kept up to date as entities are added, replaced or removed, when actions run through
+     * [runForSingle], [runForMany], [runMatching] or [runForAll] modify them, and, for entities implementing
+     * [net.transgressoft.commons.entity.ReactiveEntity], when they publish a mutation event. Entities whose
+     * extracted key is `null` are not indexed.
+     *
+     * @param name The name of the index, used to query it
+     * @param keyExtractor The function that extracts the index key from an entity
+     * @throws IllegalArgumentException if an index with the same name already exists
+     */
+    fun createIndex(name: String, keyExtractor: Function<in T, *>)
+
+    /**
+     * Creates a secondary index with the given name as [createIndex] does, but mapping each key
+     * to a single entity. If several entities share the same key, only the last one indexed is returned.
+     *
+     * @param name The name of the index, used to query it
+     * @param keyExtractor The function that extracts the index key from an entity
+     * @throws IllegalArgumentException if an index with the same name already exists
+     */
+    fun createUniqueIndex(name: String, keyExtractor: Function<in T, *>)
+
+    /**
+     * Creates a secondary index as [createIndex] does, declaring the properties its key is extracted from,
+     * so that mutation events whose [net.transgressoft.commons.event.MutationEvent.changes] don't touch any
+     * of them don't reindex the entity. Events without property changes always reindex it.
+     *
+     * @param name The name of the index, used to query it
+     * @param properties The names of the properties the extracted key depends on
+     * @param keyExtractor The function that extracts the index key from an entity
+     * @throws IllegalArgumentException if an index with the same name already exists
+     */
+    fun createIndex(name: String, properties: Set<String>, keyExtractor: Function<in T, *>) = createIndex(name, keyExtractor)
+
+    /**
+     * Creates a unique secondary index as [createUniqueIndex] does, declaring the properties its key
+     * is extracted from as [createIndex] with properties does.
+     *
+     * @param name The name of the index, used to query it
+     * @param properties The names of the properties the extracted key depends on
+     * @param keyExtractor The function that extracts the index key from an entity
+     * @throws IllegalArgumentException if an index with the same name already exists
+     */
+    fun createUniqueIndex(name: String, properties: Set<String>, keyExtractor: Function<in T, *>) = createUniqueIndex(name, keyExtractor)
+
+    /**
+     * Removes the secondary index with the given name.
+     *
+     * @param name The name of the index to remove
+     * @return True if the index existed and was removed, false otherwise
+     */
+    fun dropIndex(name: String): Boolean
+
+    /**
+     * Returns the entities whose key in the given secondary index equals the specified key.
+     *
+     * @param name The name of the index to query
+     * @param key The key to look up
+     * @return A set of the entities indexed under the given key
+     * @throws IllegalArgumentException if no index with the given name exists
+     */
+    fun findByIndex(name: String, key: Any): Set<T>
+
     /**
      * Returns the number of entities in the registry.
      *
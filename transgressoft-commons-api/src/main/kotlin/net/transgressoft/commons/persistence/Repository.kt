@@ -18,6 +18,7 @@
 package net.transgressoft.commons.persistence
 
 import net.transgressoft.commons.entity.IdentifiableEntity
+import java.util.function.Consumer
 
 /**
  * A repository extends the [Registry] interface to provide a mutable collection of entities
@@ -107,4 +108,21 @@ interface Repository<K, T: IdentifiableEntity<K>> : Registry<K, T> where K : Com
      * Removes all entities from the repository, leaving it empty.
      */
     fun clear()
+
+    /**
+     * Runs several changes to the repository as a transaction. The changes are buffered, so they are not seen
+     * by other callers until the transaction commits, once the given action returns, and then they are applied
+     * publishing a single event per type, with all the entities created, updated or deleted by the transaction.
+     * An entity added and removed within the same transaction is not published at all. If the action throws,
+     * the changes are discarded and the exception is propagated.
+     *
+     * The commit is isolated from other changes to the same entities, but it is not atomic for readers:
+     * queries running while a transaction commits may observe part of its changes.
+     *
+     * Mutations of the entities themselves are not buffered, since they are applied to the entities directly.
+     *
+     * @param changes The action that makes the changes through the given [RepositoryTransaction]
+     * @return True if the transaction changed the repository, false otherwise
+     */
+    fun transaction(changes: Consumer<in RepositoryTransaction<K, T>>): Boolean
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.entity.IdentifiableEntity
+import java.util.Optional
+
+/**
+ * Changes to a [Repository] made within a [Repository.transaction], which are buffered until the
+ * transaction commits. Lookups see the entities of the repository with the buffered changes applied.
+ *
+ * @param K The type of the entity's identifier, which must be [Comparable]
+ * @param T The type of entities in the repository, which must implement [IdentifiableEntity]
+ */
+interface RepositoryTransaction<K, T : IdentifiableEntity<K>> where K : Comparable<K> {
+    /**
+     * Adds the given entity to the repository on commit if it doesn't already exist.
+     *
+     * @param entity The entity to add
+     * @return True if the entity will be added, false if it already existed
+     */
+    fun add(entity: T): Boolean
+
+    /**
+     * Adds the given entity to the repository on commit, replacing any existing entity with the same ID.
+     *
+     * @param entity The entity to add or replace
+     * @return True if the entity will be added or replace a different entity, false otherwise
+     */
+    fun addOrReplace(entity: T): Boolean
+
+    /**
+     * Adds all given entities to the repository on commit, replacing any existing entities with the same IDs.
+     *
+     * @param entities The set of entities to add or replace
+     * @return True if any entity will be added or replace a different entity, false otherwise
+     */
+    fun addOrReplaceAll(entities: Set<T>): Boolean = entities.fold(false) { changed, entity -> addOrReplace(entity) || changed }
+
+    /**
+     * Removes the given entity from the repository on commit.
+     *
+     * @param entity The entity to remove
+     * @return True if the entity will be removed, false if it wasn't found
+     */
+    fun remove(entity: T): Boolean
+
+    /**
+     * Removes all given entities from the repository on commit.
+     *
+     * @param entities The collection of entities to remove
+     * @return True if any entity will be removed, false otherwise
+     */
+    fun removeAll(entities: Collection<T>): Boolean = entities.fold(false) { changed, entity -> remove(entity) || changed }
+
+    /**
+     * Returns the entity with the specified ID if present, including the changes of the transaction.
+     *
+     * @param id The ID of the entity to find
+     * @return An Optional containing the entity with the given ID, or empty if not found
+     */
+    fun findById(id: K): Optional<out T>
+
+    /**
+     * Checks if an entity with the specified ID is present, including the changes of the transaction.
+     *
+     * @param id The ID to check for existence
+     * @return True if an entity with the given ID exists, false otherwise
+     */
+    fun contains(id: K): Boolean = findById(id).isPresent
+}
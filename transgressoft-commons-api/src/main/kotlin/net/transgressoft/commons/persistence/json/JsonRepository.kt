@@ -21,6 +21,7 @@ import net.transgressoft.commons.entity.ReactiveEntity
 import net.transgressoft.commons.persistence.Repository
 import java.io.Closeable
 import java.io.File
+import java.util.concurrent.CompletableFuture
 
 /**
  * A specialized repository that stores entities in JSON format.
@@ -39,4 +40,22 @@ interface JsonRepository<K : Comparable<K>, R : ReactiveEntity<K, R>> : Reposito
      * This property can be changed to redirect storage to a different file.
      */
     var jsonFile: File
+
+    /**
+     * Writes the pending changes to the file immediately, without waiting for the
+     * repository to schedule the write, and suspends until they are written.
+     */
+    suspend fun flush()
+
+    /**
+     * Writes the pending changes to the file immediately, as [flush] does, for callers outside coroutines.
+     *
+     * @return A future completed once the pending changes are written
+     */
+    fun flushAsync(): CompletableFuture<Unit>
+
+    /**
+     * Writes the pending changes to the file and closes the repository, which stops persisting its changes.
+     */
+    override fun close()
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons
+
+import net.transgressoft.commons.entity.ReactiveEntityBase
+import net.transgressoft.commons.persistence.json.TransEntityPolymorphicSerializer
+import java.util.Objects
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.builtins.MapSerializer
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.buildClassSerialDescriptor
+import kotlinx.serialization.descriptors.element
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+
+/**
+ * Minimal reactive entity used as the workload of the benchmark suite.
+ *
+ * It has a mutable name, which is part of its [uniqueId], and a mutable amount, so benchmarks
+ * can exercise both plain mutations and mutations that affect unique id lookups.
+ */
+class BenchmarkEntity(override val id: Int, initialName: String, initialAmount: Long) : ReactiveEntityBase<Int, BenchmarkEntity>() {
+
+    var name: String = initialName
+        set(value) {
+            mutateAndPublish(value, field) { field = it }
+        }
+
+    var amount: Long = initialAmount
+        set(value) {
+            mutateAndPublish(value, field) { field = it }
+        }
+
+    override val uniqueId: String
+        get() = "$id-$name"
+
+    override fun clone(): BenchmarkEntity = BenchmarkEntity(id, name, amount)
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (javaClass != other?.javaClass) return false
+        other as BenchmarkEntity
+        return id == other.id && name == other.name && amount == other.amount
+    }
+
+    override fun hashCode() = Objects.hash(id, name, amount)
+
+    override fun toString() = "BenchmarkEntity(id=$id, name=$name, amount=$amount)"
+}
+
+/**
+ * Creates [count] entities with consecutive ids starting at 1.
+ */
+fun benchmarkEntities(count: Int): List<BenchmarkEntity> = (1..count).map { BenchmarkEntity(it, "name-$it", it.toLong()) }
+
+object BenchmarkEntitySerializer : TransEntityPolymorphicSerializer<BenchmarkEntity> {
+    override val descriptor: SerialDescriptor =
+        buildClassSerialDescriptor("BenchmarkEntity") {
+            element<Int>("id")
+            element<String>("name")
+            element<Long>("amount")
+        }
+
+    override fun serialize(encoder: Encoder, value: BenchmarkEntity) {
+        val compositeEncoder = encoder.beginStructure(descriptor)
+        compositeEncoder.encodeIntElement(descriptor, 0, value.id)
+        compositeEncoder.encodeStringElement(descriptor, 1, value.name)
+        compositeEncoder.encodeLongElement(descriptor, 2, value.amount)
+        compositeEncoder.endStructure(descriptor)
+    }
+
+    override fun getPropertiesList(decoder: Decoder): List<Any?> {
+        val compositeDecoder = decoder.beginStructure(descriptor)
+        val propertiesList: MutableList<Any?> = mutableListOf()
+
+        loop@ while (true) {
+            when (val index = compositeDecoder.decodeElementIndex(descriptor)) {
+                CompositeDecoder.DECODE_DONE -> break@loop
+                0 -> propertiesList.add(compositeDecoder.decodeIntElement(descriptor, index))
+                1 -> propertiesList.add(compositeDecoder.decodeStringElement(descriptor, index))
+                2 -> propertiesList.add(compositeDecoder.decodeLongElement(descriptor, index))
+                else -> error("Unexpected index $index")
+            }
+        }
+        compositeDecoder.endStructure(descriptor)
+        return propertiesList
+    }
+
+    override fun createInstance(propertiesList: List<Any?>): BenchmarkEntity =
+        BenchmarkEntity(propertiesList[0] as Int, propertiesList[1] as String, propertiesList[2] as Long)
+}
+
+val benchmarkEntityMapSerializer: KSerializer<Map<Int, BenchmarkEntity>> = MapSerializer(Int.serializer(), BenchmarkEntitySerializer)
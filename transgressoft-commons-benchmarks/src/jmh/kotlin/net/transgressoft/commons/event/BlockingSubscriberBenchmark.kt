@@ -0,0 +1,105 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.event.CrudEvent.Type.CREATE
+import net.transgressoft.commons.event.StandardCrudEvent.Create
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures the delivery throughput of [FlowEventPublisher] to subscribers that block, as Java subscribers
+ * doing I/O often do, when running on the default [ReactiveScope.flowScope] or on virtual threads with
+ * [ReactiveScope.useVirtualThreads]. Running on virtual threads requires a JDK 21 or later for the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class BlockingSubscriberBenchmark {
+
+    @Param("default", "virtual")
+    var scope: String = ""
+
+    @Param("4", "64")
+    var subscribers: Int = 0
+
+    private val delivered = AtomicLong()
+
+    private lateinit var publisher: FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>
+    private lateinit var subscriptions: List<TransEventSubscription<*, CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>>
+    private lateinit var event: CrudEvent<Int, BenchmarkEntity>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        if (scope == "virtual") {
+            ReactiveScope.useVirtualThreads()
+        }
+        publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>("BlockingSubscriberBenchmark").apply { activateEvents(CREATE) }
+        subscriptions =
+            List(subscribers) {
+                publisher.subscribe(DeliveryMode.Sequential) {
+                    Thread.sleep(BLOCKING_MILLIS)
+                    delivered.incrementAndGet()
+                }
+            }
+        event = Create(BenchmarkEntity(1, "name-1", 1L))
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        subscriptions.forEach { it.cancel() }
+        publisher.close()
+        ReactiveScope.resetDefaultFlowScope()
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    fun emitAsyncAndDeliver() {
+        val expected = delivered.get() + BATCH_SIZE.toLong() * subscribers
+        repeat(BATCH_SIZE) { publisher.emitAsync(event) }
+        val deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS
+        while (delivered.get() < expected) {
+            check(System.nanoTime() < deadline) { "Only ${delivered.get()} of $expected events were delivered in time" }
+            Thread.sleep(0, 100_000)
+        }
+    }
+
+    private companion object {
+        const val BATCH_SIZE = 20
+        const val BLOCKING_MILLIS = 1L
+        val DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60)
+    }
+}
@@ -0,0 +1,89 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.event.CrudEvent.Type.CREATE
+import net.transgressoft.commons.event.CrudEvent.Type.DELETE
+import net.transgressoft.commons.event.CrudEvent.Type.READ
+import net.transgressoft.commons.event.CrudEvent.Type.UPDATE
+import net.transgressoft.commons.event.StandardCrudEvent.Read
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the check of the event types activated in a publisher, done on every emission, between the
+ * [EventTypeSet] used by [FlowEventPublisher] and the [ConcurrentSkipListSet] it replaced. Also measures
+ * [FlowEventPublisher.emitAsync] of an event whose type is disabled, which only pays for that check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+open class EventTypeSetBenchmark {
+
+    private val eventTypes = arrayOf<EventType>(CREATE, READ, UPDATE, DELETE)
+
+    private val skipListSet = ConcurrentSkipListSet<EventType>()
+
+    private val eventTypeSet = EventTypeSet()
+
+    private lateinit var publisher: FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>
+
+    private lateinit var disabledEvent: CrudEvent<Int, BenchmarkEntity>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        listOf(CREATE, UPDATE, DELETE).let {
+            skipListSet.addAll(it)
+            eventTypeSet.addAll(it)
+        }
+        publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>("EventTypeSetBenchmark").apply { activateEvents(CREATE) }
+        disabledEvent = Read(BenchmarkEntity(1, "name-1", 1L))
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        publisher.close()
+    }
+
+    @Benchmark
+    fun skipListContains(): Int = eventTypes.count { it in skipListSet }
+
+    @Benchmark
+    fun eventTypeSetContains(): Int = eventTypes.count { it in eventTypeSet }
+
+    @Benchmark
+    fun emitAsyncOfDisabledType() = publisher.emitAsync(disabledEvent)
+}
@@ -0,0 +1,116 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.event.CrudEvent.Type.CREATE
+import net.transgressoft.commons.event.StandardCrudEvent.Create
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures the end-to-end throughput of [FlowEventPublisher.emitAsync] and [FlowEventPublisher.emitAllAsync]:
+ * every operation is an emitted event, and each invocation only returns once all subscribers have received
+ * the whole batch, so the score reflects delivery rather than how fast events can be queued. Subscribers
+ * receive the events one by one, or in batches when registered with [FlowEventPublisher.subscribeBatched].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class FlowEventPublisherBenchmark {
+
+    @Param("1", "10", "100")
+    var subscribers: Int = 0
+
+    @Param("false", "true")
+    var batched: Boolean = false
+
+    private val delivered = AtomicLong()
+
+    private lateinit var publisher: FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>
+    private lateinit var subscriptions: List<TransEventSubscription<*, CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>>
+    private lateinit var event: CrudEvent<Int, BenchmarkEntity>
+    private lateinit var events: List<CrudEvent<Int, BenchmarkEntity>>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<Int, BenchmarkEntity>>("FlowEventPublisherBenchmark").apply { activateEvents(CREATE) }
+        subscriptions =
+            List(subscribers) {
+                if (batched) {
+                    publisher.subscribeBatched { batch -> delivered.addAndGet(batch.size.toLong()) }
+                } else {
+                    publisher.subscribe(CREATE) { delivered.incrementAndGet() }
+                }
+            }
+        event = Create(BenchmarkEntity(1, "name-1", 1L))
+        events = List(BATCH_SIZE) { event }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        subscriptions.forEach { it.cancel() }
+        publisher.close()
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    fun emitAsyncAndDeliver() {
+        val expected = delivered.get() + BATCH_SIZE.toLong() * subscribers
+        repeat(BATCH_SIZE) { publisher.emitAsync(event) }
+        awaitDelivery(expected)
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    fun emitAllAsyncAndDeliver() {
+        val expected = delivered.get() + BATCH_SIZE.toLong() * subscribers
+        publisher.emitAllAsync(events)
+        awaitDelivery(expected)
+    }
+
+    private fun awaitDelivery(expected: Long) {
+        val deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS
+        while (delivered.get() < expected) {
+            check(System.nanoTime() < deadline) { "Only ${delivered.get()} of $expected events were delivered in time" }
+            Thread.onSpinWait()
+        }
+    }
+
+    private companion object {
+        const val BATCH_SIZE = 1_000
+        val DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30)
+    }
+}
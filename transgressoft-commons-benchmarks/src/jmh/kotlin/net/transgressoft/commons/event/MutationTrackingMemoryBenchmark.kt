@@ -0,0 +1,101 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.Flow
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the memory retained to track the mutations of a million entities, as repositories do, either by
+ * subscribing to the publisher of each entity or by attaching them to a shared [MutationEventBus]. Each
+ * invocation tracks all the entities, and the heap retained by the tracking is reported per entity in
+ * the `retainedBytesPerEntity` secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx8g"])
+open class MutationTrackingMemoryBenchmark {
+
+    @Param("1000000")
+    var entityCount: Int = 0
+
+    @Param("publishers", "bus")
+    var tracking: String = ""
+
+    private lateinit var entities: List<BenchmarkEntity>
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class MemoryCounters {
+        @JvmField
+        var retainedBytesPerEntity: Long = 0
+    }
+
+    @Setup(Level.Iteration)
+    fun setUp() {
+        entities = benchmarkEntities(entityCount)
+    }
+
+    @Benchmark
+    fun trackMutations(counters: MemoryCounters): List<Flow.Subscription> {
+        val heapBefore = usedHeap()
+        val bus = MutationEventBus<Int>("MutationTrackingMemoryBenchmark")
+        val subscriptions =
+            if (tracking == "bus") {
+                bus.subscribe { }
+                entities.map { bus.attach(it) }
+            } else {
+                entities.map { entity -> entity.subscribe { } }
+            }
+        counters.retainedBytesPerEntity = (usedHeap() - heapBefore) / entityCount
+
+        subscriptions.forEach { subscription ->
+            subscription.cancel()
+            // The publisher of each entity keeps its coroutines until closed, as repositories do when removing it
+            if (subscription is TransEventSubscription<*, *, *>) {
+                subscription.source.close()
+            }
+        }
+        bus.close()
+        return subscriptions
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) { System.gc() }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+}
@@ -0,0 +1,86 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the throughput of a [VolatileRepository] in concurrent mode modified from several threads,
+ * to be compared with a single thread running the same benchmark with `-t 1`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx4g"])
+open class ConcurrentVolatileRepositoryBenchmark {
+
+    @Param("1000", "100000")
+    var entityCount: Int = 0
+
+    private lateinit var repository: VolatileRepository<Int, BenchmarkEntity>
+    private lateinit var entities: List<BenchmarkEntity>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        entities = benchmarkEntities(entityCount)
+        repository = VolatileRepository.concurrent("ConcurrentVolatileRepositoryBenchmark")
+        repository.addOrReplaceAll(entities.toSet())
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        repository.close()
+    }
+
+    @Benchmark
+    fun removeAndAdd(): Boolean {
+        val entity = entities[ThreadLocalRandom.current().nextInt(entityCount)]
+        repository.remove(entity)
+        return repository.add(entity)
+    }
+
+    @Benchmark
+    fun addOrReplaceAllOfBatch(): Boolean {
+        val from = ThreadLocalRandom.current().nextInt(entityCount - BATCH_SIZE)
+        return repository.addOrReplaceAll(entities.subList(from, from + BATCH_SIZE).toSet())
+    }
+
+    private companion object {
+        const val BATCH_SIZE = 100
+    }
+}
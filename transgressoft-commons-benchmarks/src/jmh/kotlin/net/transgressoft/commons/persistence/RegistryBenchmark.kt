@@ -0,0 +1,105 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.Optional
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Measures the query paths of [RegistryBase] over registries of increasing size, and the
+ * change detection of actions run on all of its entities, which only clones the changed ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx4g"])
+open class RegistryBenchmark {
+
+    @Param("10000", "100000", "1000000")
+    var entityCount: Int = 0
+
+    private lateinit var repository: VolatileRepository<Int, BenchmarkEntity>
+    private lateinit var lookupIds: IntArray
+    private lateinit var lookupUniqueIds: Array<String>
+    private var next = 0
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val entities = benchmarkEntities(entityCount)
+        repository = VolatileRepository("RegistryBenchmark")
+        repository.addOrReplaceAll(entities.toSet())
+
+        val random = Random(42)
+        lookupIds = IntArray(LOOKUPS) { random.nextInt(1, entityCount + 1) }
+        lookupUniqueIds = Array(LOOKUPS) { entities[lookupIds[it] - 1].uniqueId }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        repository.close()
+    }
+
+    private fun nextIndex(): Int {
+        next = (next + 1) and (LOOKUPS - 1)
+        return next
+    }
+
+    @Benchmark
+    fun findById(): Optional<out BenchmarkEntity> = repository.findById(lookupIds[nextIndex()])
+
+    @Benchmark
+    fun findByUniqueId(): Optional<out BenchmarkEntity> = repository.findByUniqueId(lookupUniqueIds[nextIndex()])
+
+    @Benchmark
+    fun search(): Set<BenchmarkEntity> {
+        val name = "name-${lookupIds[nextIndex()]}"
+        return repository.search { it.name == name }
+    }
+
+    @Benchmark
+    fun runForAllUnchanged(): Boolean = repository.runForAll { it.amount = it.amount }
+
+    @Benchmark
+    fun runForAllChangingOne(): Boolean {
+        val id = lookupIds[nextIndex()]
+        return repository.runForAll { if (it.id == id) it.amount = it.amount + 1 }
+    }
+
+    private companion object {
+        // Power of two so the lookup index can wrap around with a mask
+        const val LOOKUPS = 1 shl 14
+    }
+}
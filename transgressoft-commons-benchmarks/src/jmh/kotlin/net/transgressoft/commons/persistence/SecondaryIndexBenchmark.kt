@@ -0,0 +1,92 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Compares queries by a user defined secondary index of [RegistryBase] against the equivalent predicate search.
+ * Kept apart from [RegistryBenchmark] because creating the index subscribes to the mutations of every entity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx8g"])
+open class SecondaryIndexBenchmark {
+
+    @Param("10000", "100000", "1000000")
+    var entityCount: Int = 0
+
+    private lateinit var repository: VolatileRepository<Int, BenchmarkEntity>
+    private lateinit var lookupNames: Array<String>
+    private var next = 0
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        repository = VolatileRepository("SecondaryIndexBenchmark")
+        repository.addOrReplaceAll(benchmarkEntities(entityCount).toSet())
+        repository.createIndex(NAME_INDEX) { it.name }
+
+        val random = Random(42)
+        lookupNames = Array(LOOKUPS) { "name-${random.nextInt(1, entityCount + 1)}" }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        repository.close()
+    }
+
+    private fun nextName(): String {
+        next = (next + 1) and (LOOKUPS - 1)
+        return lookupNames[next]
+    }
+
+    @Benchmark
+    fun findByIndex(): Set<BenchmarkEntity> = repository.findByIndex(NAME_INDEX, nextName())
+
+    @Benchmark
+    fun search(): Set<BenchmarkEntity> {
+        val name = nextName()
+        return repository.search { it.name == name }
+    }
+
+    private companion object {
+        const val NAME_INDEX = "name"
+
+        // Power of two so the lookup index can wrap around with a mask
+        const val LOOKUPS = 1 shl 14
+    }
+}
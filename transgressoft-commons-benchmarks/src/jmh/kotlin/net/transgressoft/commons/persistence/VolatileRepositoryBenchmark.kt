@@ -0,0 +1,97 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the batch operations of [VolatileRepository] for different batch sizes,
+ * backed by the default [HashMap] and by the [ConcurrentHashMap] of the concurrent mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx4g"])
+open class VolatileRepositoryBenchmark {
+
+    @Param("10", "1000", "100000")
+    var batchSize: Int = 0
+
+    @Param("false", "true")
+    var concurrent: Boolean = false
+
+    private lateinit var insertionRepository: VolatileRepository<Int, BenchmarkEntity>
+    private lateinit var replacementRepository: VolatileRepository<Int, BenchmarkEntity>
+    private lateinit var batch: Set<BenchmarkEntity>
+    private lateinit var replacementBatches: Array<Set<BenchmarkEntity>>
+    private var replacementIndex = 0
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        batch = benchmarkEntities(batchSize).toSet()
+        // Two alternating versions of the same entities, so every replacement results in an update
+        replacementBatches =
+            arrayOf(
+                batch.map { BenchmarkEntity(it.id, "replacement-a-${it.id}", it.amount) }.toSet(),
+                batch.map { BenchmarkEntity(it.id, "replacement-b-${it.id}", it.amount) }.toSet()
+            )
+
+        insertionRepository = createRepository("VolatileRepositoryBenchmark-insertion")
+        replacementRepository = createRepository("VolatileRepositoryBenchmark-replacement")
+        replacementRepository.addOrReplaceAll(batch)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        insertionRepository.close()
+        replacementRepository.close()
+    }
+
+    private fun createRepository(name: String): VolatileRepository<Int, BenchmarkEntity> =
+        if (concurrent) VolatileRepository.concurrent(name) else VolatileRepository(name)
+
+    @Benchmark
+    fun addOrReplaceAllThenClear() {
+        insertionRepository.addOrReplaceAll(batch)
+        insertionRepository.clear()
+    }
+
+    @Benchmark
+    fun addOrReplaceAllReplacingEntities(): Boolean {
+        replacementIndex = replacementIndex xor 1
+        return replacementRepository.addOrReplaceAll(replacementBatches[replacementIndex])
+    }
+}
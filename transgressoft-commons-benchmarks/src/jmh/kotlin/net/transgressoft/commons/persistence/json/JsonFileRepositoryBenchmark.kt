@@ -0,0 +1,122 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence.json
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import net.transgressoft.commons.benchmarkEntityMapSerializer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Measures the end-to-end persistence latency of [JsonFileRepository]: the time elapsed from
+ * an entity mutation until the repository file has been rewritten with it, either when scheduled
+ * by the default [FlushPolicy] or explicitly with [JsonFileRepository.flush], for each [RepositoryFormat].
+ *
+ * Each mutation alternates the name of an entity between two values that differ in one character,
+ * so the scheduled write is detected as soon as the file reaches its expected new size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx4g"])
+open class JsonFileRepositoryBenchmark {
+
+    @Param("1000", "10000", "100000")
+    var entityCount: Int = 0
+
+    @Param("PRETTY_JSON", "COMPACT_JSON", "CBOR")
+    var format: RepositoryFormat = RepositoryFormat.PRETTY_JSON
+
+    private lateinit var jsonFile: File
+    private lateinit var repository: JsonFileRepository<Int, BenchmarkEntity>
+    private lateinit var mutatedEntity: BenchmarkEntity
+    private lateinit var shortName: String
+    private lateinit var longName: String
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        jsonFile = Files.createTempFile("json-repository-benchmark", ".${format.fileExtension}").toFile()
+        repository = JsonFileRepository(jsonFile, benchmarkEntityMapSerializer, config = JsonRepositoryConfig(format = format))
+
+        val entities = benchmarkEntities(entityCount)
+        repository.addOrReplaceAll(entities.toSet())
+        repository.flushAsync().join()
+
+        mutatedEntity = entities[entities.size / 2]
+        shortName = mutatedEntity.name
+        longName = "$shortName-"
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        repository.close()
+        jsonFile.delete()
+    }
+
+    @Benchmark
+    fun mutateAndAwaitPersistence() {
+        val expectedSize =
+            if (mutatedEntity.name == shortName) {
+                mutatedEntity.name = longName
+                fileSize() + 1
+            } else {
+                mutatedEntity.name = shortName
+                fileSize() - 1
+            }
+        awaitFileSize(expectedSize)
+    }
+
+    @Benchmark
+    fun mutateAndFlush() {
+        mutatedEntity.name = if (mutatedEntity.name == shortName) longName else shortName
+        repository.flushAsync().join()
+    }
+
+    private fun fileSize(): Long = Files.size(jsonFile.toPath())
+
+    private fun awaitFileSize(expectedSize: Long) {
+        val deadline = System.nanoTime() + PERSISTENCE_TIMEOUT_NANOS
+        while (fileSize() != expectedSize) {
+            check(System.nanoTime() < deadline) { "$jsonFile was not updated in time" }
+            LockSupport.parkNanos(POLL_INTERVAL_NANOS)
+        }
+    }
+
+    private companion object {
+        val PERSISTENCE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30)
+        val POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(100)
+    }
+}
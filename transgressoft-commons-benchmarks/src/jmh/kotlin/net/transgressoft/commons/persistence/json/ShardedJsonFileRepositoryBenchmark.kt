@@ -0,0 +1,85 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence.json
+
+import net.transgressoft.commons.BenchmarkEntity
+import net.transgressoft.commons.benchmarkEntities
+import net.transgressoft.commons.benchmarkEntityMapSerializer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the persistence latency of a single entity mutation in a [ShardedJsonFileRepository],
+ * which only rewrites the shard of the mutated entity, for increasing numbers of shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx4g"])
+open class ShardedJsonFileRepositoryBenchmark {
+
+    @Param("10000", "100000")
+    var entityCount: Int = 0
+
+    @Param("1", "16", "64")
+    var shardCount: Int = 0
+
+    private lateinit var directory: File
+    private lateinit var repository: ShardedJsonFileRepository<Int, BenchmarkEntity>
+    private lateinit var mutatedEntity: BenchmarkEntity
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        directory = Files.createTempDirectory("sharded-repository-benchmark").toFile()
+        repository = ShardedJsonFileRepository(directory, shardCount, benchmarkEntityMapSerializer)
+
+        val entities = benchmarkEntities(entityCount)
+        repository.addOrReplaceAll(entities.toSet())
+        repository.flushAsync().join()
+
+        mutatedEntity = entities[entities.size / 2]
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        repository.close()
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun mutateAndFlush() {
+        mutatedEntity.amount++
+        repository.flushAsync().join()
+    }
+}
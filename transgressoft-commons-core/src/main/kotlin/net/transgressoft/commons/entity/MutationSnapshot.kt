@@ -0,0 +1,36 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.entity
+
+/**
+ * How a [ReactiveEntityBase] captures its state before a mutation for the [net.transgressoft.commons.event.MutationEvent]s
+ * it publishes. In any case, nothing is captured while nobody is tracking the mutations of the entity.
+ */
+enum class MutationSnapshot {
+    /**
+     * The entity is cloned before every mutation, so that events carry a copy of the entity before it.
+     */
+    CLONE,
+
+    /**
+     * Mutations of named properties are recorded as [net.transgressoft.commons.event.PropertyChange]s only, without
+     * cloning the entity, so events don't carry a copy of the entity before them. Mutations through a lambda, whose
+     * changes are unknown, still clone the entity.
+     */
+    PROPERTY_CHANGES
+}
@@ -17,8 +17,12 @@
 
 package net.transgressoft.commons.entity
 
+import net.transgressoft.commons.event.DeliveryMode
 import net.transgressoft.commons.event.FlowEventPublisher
 import net.transgressoft.commons.event.MutationEvent
+import net.transgressoft.commons.event.MutationEventBus
+import net.transgressoft.commons.event.PropertyChange
+import net.transgressoft.commons.event.PropertyMutationEvent
 import net.transgressoft.commons.event.MutationEvent.Type.MUTATE
 import net.transgressoft.commons.event.ReactiveMutationEvent
 import net.transgressoft.commons.event.TransEventPublisher
@@ -40,7 +44,8 @@ import kotlinx.coroutines.flow.SharedFlow
  * This implementation uses lazy initialization for the event publisher - the publisher infrastructure
  * (channels, flows, and coroutines) is only created when the first subscriber registers. This significantly
  * reduces memory overhead for entities that are never observed, which is especially beneficial in applications
- * with thousands of reactive entities.
+ * with thousands of reactive entities. Repositories track the mutations of their entities through a shared
+ * [MutationEventBus] instead, which doesn't create the publisher of the entity either.
  *
  * @param K The type of the entity's unique identifier, which must implement [Comparable]
  * @param R The concrete type of the reactive entity that extends this class
@@ -85,6 +90,38 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
                 }
             }
 
+    /**
+     * Buses the mutations of the entity are published to besides its own publisher, usually those of the repositories
+     * storing it. Replaced on every change, so that it's read without locking on every mutation.
+     */
+    @Volatile
+    private var mutationBuses: List<MutationEventBus<K>> = emptyList()
+
+    internal fun attachTo(bus: MutationEventBus<K>) =
+        synchronized(this) {
+            mutationBuses = mutationBuses + bus
+        }
+
+    internal fun detachFrom(bus: MutationEventBus<K>) =
+        synchronized(this) {
+            mutationBuses = mutationBuses - bus
+        }
+
+    /**
+     * Closes the publisher of the entity if it is a [FlowEventPublisher] without subscribers, releasing its coroutines
+     * and channels, which is done by the repositories when the entity is removed from them. A new publisher is
+     * created if anyone subscribes to the entity afterward.
+     */
+    internal fun releasePublisherIfUnobserved() {
+        synchronized(this) {
+            val currentPublisher = _publisher
+            if (currentPublisher is FlowEventPublisher<*, *> && !currentPublisher.hasSubscribers) {
+                currentPublisher.close()
+                _publisher = null
+            }
+        }
+    }
+
     /**
      * Determines whether events should be emitted. Returns true only if the publisher has been initialized,
      * which happens when the first subscriber registers.
@@ -105,6 +142,28 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
     override var lastDateModified: LocalDateTime = LocalDateTime.now()
         protected set
 
+    /**
+     * Number of mutations applied to the entity through [mutateAndPublish], so that whether it changed between
+     * two moments is told by comparing it, without copying the entity or comparing its [hashCode].
+     */
+    @Volatile
+    var mutationVersion: Long = 0
+        private set
+
+    /**
+     * Whether every mutation of the entity goes through [mutateAndPublish], so that registries running actions on it
+     * detect its changes by its [mutationVersion], cloning it only if it changed. Otherwise, they clone it beforehand
+     * and compare its [hashCode]. True by default, so entities with properties that are set directly must override
+     * it to `false` for those changes to be detected.
+     */
+    protected open val versionedMutations: Boolean
+        get() = true
+
+    private fun markModified() {
+        lastDateModified = LocalDateTime.now()
+        mutationVersion++
+    }
+
     /**
      * A flow of entity change events that collectors can observe.
      * Accessing this property will trigger lazy initialization of the publisher.
@@ -117,6 +176,12 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
     override fun subscribe(action: suspend (MutationEvent<K, R>) -> Unit):
         TransEventSubscription<in TransEntity, MutationEvent.Type, MutationEvent<K, R>> = publisher.subscribe(action)
 
+    override fun subscribe(action: Consumer<in MutationEvent<K, R>>):
+        TransEventSubscription<in TransEntity, MutationEvent.Type, MutationEvent<K, R>> = publisher.subscribe(action)
+
+    override fun subscribe(deliveryMode: DeliveryMode, action: suspend (MutationEvent<K, R>) -> Unit):
+        TransEventSubscription<in TransEntity, MutationEvent.Type, MutationEvent<K, R>> = publisher.subscribe(deliveryMode, action)
+
     override fun subscribe(subscriber: Flow.Subscriber<in MutationEvent<K, R>>?) = publisher.subscribe(subscriber)
 
     override fun subscribe(vararg eventTypes: MutationEvent.Type, action: Consumer<in MutationEvent<K, R>>):
@@ -124,7 +189,106 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
         require(MUTATE in eventTypes) {
             throw IllegalArgumentException("Only UPDATE event is supported for reactive entities")
         }
-        return subscribe(action::accept)
+        return subscribe(action)
+    }
+
+    /**
+     * How the entity captures its state before a mutation, cloning it by default. Entities with large state that
+     * mutate through the named [mutateAndPublish] can record [PropertyChange]s instead, avoiding a copy per mutation.
+     */
+    protected open val mutationSnapshot: MutationSnapshot = MutationSnapshot.CLONE
+
+    /**
+     * Whether anyone tracks the mutations of the entity, either through its publisher or a [MutationEventBus].
+     * Otherwise, mutations neither capture the state of the entity nor publish events.
+     */
+    private val isTracked: Boolean
+        get() = shouldEmit || mutationBuses.isNotEmpty()
+
+    /**
+     * The batch of mutations in progress started by [batchMutate], if any.
+     */
+    private var batch: MutationBatch<R>? = null
+
+    /**
+     * Runs several mutations of the entity as a single one, capturing its state once before them and publishing
+     * a single [MutationEvent] after them, instead of one per mutation. The event carries the [PropertyChange]s
+     * of the named mutations coalesced by property, or none if any mutation in the batch was run through a lambda,
+     * whose changes are unknown. No event is published if the mutations left the entity as it was. With
+     * [MutationSnapshot.PROPERTY_CHANGES], the entity is only cloned right before the first mutation whose changes
+     * are unknown, publishing the changes recorded until then on their own, so that no event lacks both.
+     *
+     * If a mutation throws, the mutations applied before it are published before the exception propagates.
+     * Batches nested in another one join it. As with single mutations, batches are not synchronized, so
+     * concurrent mutations of the entity must be synchronized by the caller.
+     *
+     * @param T The type of the result of the mutations
+     * @param mutations The mutations of the entity
+     * @return The result of the mutations
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> batchMutate(mutations: () -> T): T {
+        if (batch != null) {
+            return mutations()
+        }
+        val tracked = isTracked
+        val entityBeforeChange = if (tracked && mutationSnapshot == MutationSnapshot.CLONE) clone() as R else null
+        return runBatch(MutationBatch(tracked, entityBeforeChange), mutations)
+    }
+
+    /**
+     * Runs an action on the entity, used by registries to detect the entities changed by an action. With
+     * [versionedMutations], the action runs as a [batchMutate] does, but cloning the entity right before its first
+     * mutation whether its mutations are tracked or not, so that only the changed entities are cloned. Otherwise,
+     * the entity is cloned beforehand and its changes detected by its [hashCode] or its [mutationVersion].
+     *
+     * @return The entity before the action, or `null` if the action didn't change it
+     */
+    @Suppress("UNCHECKED_CAST")
+    internal fun captureMutations(action: () -> Unit): R? {
+        // A batch in progress may not have taken its snapshot, so the entity is cloned beforehand as well
+        if (!versionedMutations || batch != null) {
+            val previousHashCode = hashCode()
+            val versionBefore = mutationVersion
+            val entityBeforeChange = clone() as R
+            action()
+            return entityBeforeChange.takeIf {
+                previousHashCode != hashCode() || (mutationVersion != versionBefore && it != this)
+            }
+        }
+        val previousHashCode = hashCode()
+        val newBatch = MutationBatch(isTracked, snapshot = { clone() as R })
+        runBatch(newBatch, action)
+        if (!newBatch.hasChanges && previousHashCode != hashCode()) {
+            log.warn { "Entity $id was changed without mutateAndPublish, which is not detected unless versionedMutations is false" }
+        }
+        return if (newBatch.hasChanges) newBatch.entityBeforeChange else null
+    }
+
+    private fun <T> runBatch(newBatch: MutationBatch<R>, mutations: () -> T): T {
+        batch = newBatch
+        try {
+            return mutations()
+        } finally {
+            // The mutations applied before a failing one are published as well, since they can't be undone
+            batch = null
+            publishBatch(newBatch)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun publishBatch(finishedBatch: MutationBatch<R>) {
+        if (finishedBatch.tracked && finishedBatch.hasChanges) {
+            val changes = finishedBatch.changes
+            val entityBeforeChange = finishedBatch.entityBeforeChange
+            val event: MutationEvent<K, R> =
+                if (entityBeforeChange != null) {
+                    ReactiveMutationEvent(this as R, entityBeforeChange, changes)
+                } else {
+                    PropertyMutationEvent(this as R, changes)
+                }
+            publishMutation(event)
+        }
     }
 
     /**
@@ -132,10 +296,11 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
      *
      * This method implements the reactive pattern - it:
      * 1. Compares the new value with the old value
-     * 2. If different, captures the entity state before the change
+     * 2. If different and the mutations are tracked, captures the entity state before the change
      * 3. Applies the new value using the provided property setter
      * 4. Updates the last modified timestamp
-     * 5. Notifies all subscribers with both the updated and previous entity states (only if the publisher is initialized)
+     * 5. Notifies all subscribers with both the updated and previous entity states (only if the publisher is initialized
+     *    or the entity is attached to a [MutationEventBus])
      *
      * @param T The type of the property being modified
      * @param newValue The new value to set
@@ -146,18 +311,105 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
     @JvmOverloads
     protected fun <T> mutateAndPublish(newValue: T, oldValue: T, propertySetAction: (T) -> Unit = {}) {
         if (newValue != oldValue) {
-            val entityBeforeChange = clone()
+            batch?.let {
+                beforeUnknownMutation(it)
+                propertySetAction(newValue)
+                markModified()
+                it.recordUnknownChange()
+                return
+            }
+            val entityBeforeChange = if (isTracked) clone() as R else null
             propertySetAction(newValue)
-            lastDateModified = LocalDateTime.now()
-            if (shouldEmit) {
-                log.trace { "Firing entity update event from $entityBeforeChange to $this" }
-                publisher.emitAsync(ReactiveMutationEvent(this as R, entityBeforeChange as R))
+            markModified()
+            entityBeforeChange?.let { publishMutation(ReactiveMutationEvent(this as R, it)) }
+        }
+    }
+
+    /**
+     * Variant of [mutateAndPublish] for a named property, whose change is carried by the published event
+     * as a [PropertyChange]. With [MutationSnapshot.PROPERTY_CHANGES], the entity is not cloned.
+     *
+     * @param T The type of the property being modified
+     * @param property The name of the property being modified
+     * @param newValue The new value to set
+     * @param oldValue The current value of the property
+     * @param propertySetAction A consumer that actually sets the property's value
+     */
+    @Suppress("UNCHECKED_CAST")
+    protected fun <T> mutateAndPublish(property: String, newValue: T, oldValue: T, propertySetAction: (T) -> Unit) {
+        if (newValue != oldValue) {
+            batch?.let {
+                it.beforeMutation()
+                propertySetAction(newValue)
+                markModified()
+                it.record(PropertyChange(property, oldValue, newValue))
+                return
             }
+            val tracked = isTracked
+            val entityBeforeChange = if (tracked && mutationSnapshot == MutationSnapshot.CLONE) clone() as R else null
+            propertySetAction(newValue)
+            markModified()
+            if (tracked) {
+                val changes = listOf(PropertyChange(property, oldValue, newValue))
+                val event: MutationEvent<K, R> =
+                    if (entityBeforeChange != null) {
+                        ReactiveMutationEvent(this as R, entityBeforeChange, changes)
+                    } else {
+                        PropertyMutationEvent(this as R, changes)
+                    }
+                publishMutation(event)
+            }
+        }
+    }
+
+    /**
+     * Prepares a batch for a mutation whose changes are unknown, which needs a copy of the entity before it.
+     * A tracked batch without one, because the entity records property changes only, publishes the changes
+     * recorded so far on their own and continues from a clone taken right before the mutation.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun beforeUnknownMutation(currentBatch: MutationBatch<R>) {
+        currentBatch.beforeMutation()
+        if (currentBatch.tracked && currentBatch.entityBeforeChange == null) {
+            if (currentBatch.hasChanges) {
+                publishMutation(PropertyMutationEvent(this as R, currentBatch.changes))
+            }
+            currentBatch.restartFrom(clone() as R)
         }
     }
 
+    private fun publishMutation(event: MutationEvent<K, R>) {
+        log.trace { "Firing entity update event $event" }
+        if (shouldEmit) {
+            publisher.emitAsync(event)
+        }
+        mutationBuses.forEach { it.emitAsync(event) }
+    }
+
+    /**
+     * Runs a mutation of the entity and notifies all subscribers if it changed the entity, as told by [equals],
+     * or by [hashCode] when nobody tracks its mutations or it runs in a [batchMutate], to avoid cloning the entity.
+     */
     @Suppress("UNCHECKED_CAST")
     protected fun <T> mutateAndPublish(mutationAction: () -> T): T {
+        batch?.let { currentBatch ->
+            beforeUnknownMutation(currentBatch)
+            val previousHashCode = hashCode()
+            return mutationAction().also {
+                if (previousHashCode != hashCode()) {
+                    markModified()
+                    currentBatch.recordUnknownChange()
+                }
+            }
+        }
+        if (!isTracked) {
+            val previousHashCode = hashCode()
+            return mutationAction().also {
+                if (previousHashCode != hashCode()) {
+                    markModified()
+                }
+            }
+        }
         val entityBeforeChange = clone()
         val result = mutationAction()
         if (entityBeforeChange == this) {
@@ -166,12 +418,68 @@ abstract class ReactiveEntityBase<K, R : ReactiveEntity<K, R>>(
                     "Consider implementing equals() and hashcode() that implies a mutation in instance variables affected by the mutationAction"
             }
         } else {
-            lastDateModified = LocalDateTime.now()
-            if (shouldEmit) {
-                log.trace { "Firing entity update event from $entityBeforeChange to $this" }
-                publisher.emitAsync(ReactiveMutationEvent(this as R, entityBeforeChange as R))
-            }
+            markModified()
+            publishMutation(ReactiveMutationEvent(this as R, entityBeforeChange as R))
         }
         return result
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Mutations of an entity run by [ReactiveEntityBase.batchMutate], coalescing the changes of each property
+ * into one from its first old value to its last new value, which is dropped if they are equal.
+ *
+ * @property tracked Whether the mutations of the entity are tracked, so that the batch is published
+ * @property entityBeforeChange The entity before the batch, if it was captured
+ * @param snapshot Function that captures the entity right before the first mutation of the batch, if not captured before it
+ */
+private class MutationBatch<R>(
+    val tracked: Boolean,
+    entityBeforeChange: R? = null,
+    private val snapshot: (() -> R)? = null
+) {
+    var entityBeforeChange: R? = entityBeforeChange
+        private set
+
+    private val changesByProperty = LinkedHashMap<String, PropertyChange>()
+    private var unknownChanges = false
+
+    val hasChanges: Boolean
+        get() = unknownChanges || changesByProperty.isNotEmpty()
+
+    /**
+     * The coalesced changes of the batch, or none if some of them are unknown.
+     */
+    val changes: List<PropertyChange>
+        get() = if (unknownChanges) emptyList() else changesByProperty.values.toList()
+
+    fun record(change: PropertyChange) {
+        val previous = changesByProperty[change.property]
+        if (previous == null) {
+            changesByProperty[change.property] = change
+        } else if (previous.oldValue == change.newValue) {
+            changesByProperty.remove(change.property)
+        } else {
+            changesByProperty[change.property] = previous.copy(newValue = change.newValue)
+        }
+    }
+
+    fun beforeMutation() {
+        if (entityBeforeChange == null && snapshot != null) {
+            entityBeforeChange = snapshot.invoke()
+        }
+    }
+
+    fun recordUnknownChange() {
+        unknownChanges = true
+    }
+
+    /**
+     * Continues the batch from the given copy of the entity, dropping the changes recorded
+     * until then, which are expected to have been published.
+     */
+    fun restartFrom(entity: R) {
+        entityBeforeChange = entity
+        changesByProperty.clear()
+    }
+}
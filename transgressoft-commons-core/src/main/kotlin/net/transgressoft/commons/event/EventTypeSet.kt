@@ -0,0 +1,64 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+/**
+ * A set of [EventType]s identified by their [EventType.code], optimized for frequent membership checks
+ * and rare updates, like the event types activated in a publisher.
+ *
+ * The set is kept in an immutable snapshot that is replaced on every update, so checking whether it
+ * contains a type doesn't take any lock and, for codes up to [MAX_INDEXED_CODE], is a single array read.
+ * Event types don't need to be [Comparable], but their codes must be unique among the types in the set.
+ */
+class EventTypeSet {
+
+    private class Snapshot(val types: Set<EventType>, val indexedCodes: BooleanArray, val otherCodes: Set<Int>)
+
+    @Volatile
+    private var snapshot = Snapshot(emptySet(), BooleanArray(0), emptySet())
+
+    operator fun contains(type: EventType): Boolean {
+        val current = snapshot
+        val code = type.code
+        return if (code >= 0 && code < current.indexedCodes.size) current.indexedCodes[code] else code in current.otherCodes
+    }
+
+    fun addAll(types: Collection<EventType>) = update { it + types }
+
+    fun removeAll(types: Collection<EventType>) = update { it - types.toSet() }
+
+    private fun update(change: (Set<EventType>) -> Set<EventType>) =
+        synchronized(this) {
+            val types = change(snapshot.types)
+            val indexedCodes = BooleanArray((types.maxOfOrNull { it.code }?.coerceIn(-1, MAX_INDEXED_CODE) ?: -1) + 1)
+            val otherCodes = HashSet<Int>()
+            types.forEach {
+                if (it.code in indexedCodes.indices) indexedCodes[it.code] = true else otherCodes.add(it.code)
+            }
+            snapshot = Snapshot(types, indexedCodes, otherCodes)
+        }
+
+    override fun toString() = snapshot.types.toString()
+
+    private companion object {
+        /**
+         * Highest code kept in the array of the snapshot, so that types with large codes don't waste memory.
+         */
+        const val MAX_INDEXED_CODE = 4095
+    }
+}
@@ -19,15 +19,24 @@ package net.transgressoft.commons.event
 
 import net.transgressoft.commons.entity.TransEntity
 import mu.KotlinLogging
-import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.Flow
+import java.util.function.Consumer
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.buffer
 import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.produceIn
 import kotlinx.coroutines.launch
 
 /**
@@ -44,15 +53,35 @@ import kotlinx.coroutines.launch
  *   - SUSPEND (default): Emitter waits - guarantees delivery but can slow producers
  *   - DROP_OLDEST: Drops old events - never blocks but may lose events
  *   - DROP_LATEST: Drops new events - never blocks but may lose events
+ * @property maxBatchSize Maximum number of pending events delivered together to batched subscribers.
+ * @property channelCapacity Number of emissions waiting to be delivered that the publisher holds, where each
+ *   `emitAllAsync` counts as one. Unlimited by default, so emissions never fail but memory can grow during
+ *   bursts with slow subscribers. A bounded capacity keeps memory predictable under load.
+ * @property onChannelOverflow What happens when a bounded channel is full:
+ *   - SUSPEND (default): `emit` waits for space, while `emitAsync` drops the event and logs a warning
+ *   - DROP_OLDEST: Drops the oldest pending emission
+ *   - DROP_LATEST: Drops the new emission
+ * @property synchronousDispatch Whether the non-suspending subscribers, registered with a [java.util.function.Consumer]
+ *   or a [Flow.Subscriber], are invoked directly on the emitting thread, without going through the channel nor any
+ *   coroutine. Minimizes their latency, but slow subscribers then slow down the producers.
+ * @property scopeGroup Name of the [ReactiveScope] group whose scope processes the events, isolating the publisher
+ *   from the ones in other groups. By default, events are processed on [ReactiveScope.flowScope].
  */
 data class PublisherConfig(
     val replay: Int = 0,
     val extraBufferCapacity: Int = 5120,
-    val onBufferOverflow: BufferOverflow = BufferOverflow.SUSPEND
+    val onBufferOverflow: BufferOverflow = BufferOverflow.SUSPEND,
+    val maxBatchSize: Int = 1024,
+    val channelCapacity: Int = Channel.UNLIMITED,
+    val onChannelOverflow: BufferOverflow = BufferOverflow.SUSPEND,
+    val synchronousDispatch: Boolean = false,
+    val scopeGroup: String? = null
 ) {
     init {
         require(replay >= 0) { "replay must be non-negative" }
         require(extraBufferCapacity >= 0) { "extraBufferCapacity must be non-negative" }
+        require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+        require(channelCapacity > 0) { "channelCapacity must be positive" }
     }
 
     companion object {
@@ -91,6 +120,23 @@ data class PublisherConfig(
                 extraBufferCapacity = 5120,
                 onBufferOverflow = BufferOverflow.SUSPEND
             )
+
+        /**
+         * Configuration for latency-critical scenarios, such as in-memory caches, where
+         * non-suspending subscribers are invoked directly on the emitting thread.
+         */
+        val SYNCHRONOUS = PublisherConfig(synchronousDispatch = true)
+
+        /**
+         * Configuration with bounded memory under load, where producers that
+         * use `emit` wait for slow subscribers instead of queueing events.
+         */
+        fun withBackpressure(channelCapacity: Int = 1024) =
+            PublisherConfig(
+                extraBufferCapacity = 128,
+                channelCapacity = channelCapacity,
+                onChannelOverflow = BufferOverflow.SUSPEND
+            )
     }
 }
 
@@ -110,6 +156,9 @@ data class PublisherConfig(
  * - Support for both traditional subscribers and modern flow collectors
  * - Coroutine-based asynchronous event processing
  * - Selective event publishing based on event type activation
+ * - Batched delivery of pending events to subscribers registered with [subscribeBatched]
+ * - Dispatch of events to the subscribers of their types only, so other events don't wake them
+ * - [close] to release the coroutines and channels of the publisher once it is no longer needed
  *
  * @param E The specific type of [TransEvent] this publisher will emit
  *
@@ -129,35 +178,123 @@ class FlowEventPublisher<ET : EventType, E: TransEvent<ET>>
         private val name: String = "FlowEventPublisher-$id"
 
         /**
-         * Channel for processing events with unlimited buffer capacity.
+         * Channel for processing events, with unlimited buffer capacity by default.
          *
          * This unlimited buffer ensures that events are never dropped during high-traffic
          * periods or bursts of activity. When the processing rate catches up after a burst,
          * the memory used by processed events becomes eligible for garbage collection.
+         * A bounded [PublisherConfig.channelCapacity] trades that for predictable memory,
+         * applying backpressure to the producers that use [emit].
          *
-         * This approach prioritizes reliable event delivery over fixed memory constraints.
+         * Each element holds the events of an emission, so that [emitAllAsync] sends them all at once.
          */
-        private val eventChannel = Channel<E>(Channel.UNLIMITED)
+        private val eventChannel = Channel<List<E>>(config.channelCapacity, config.onChannelOverflow)
 
         private val changesFlow = MutableSharedFlow<E>(config.replay, config.extraBufferCapacity, config.onBufferOverflow)
 
         override val changes: SharedFlow<E> = changesFlow.asSharedFlow()
 
         /**
-         * The coroutine scope used for emitting change events.
+         * Flow of the batches of events for the subscribers registered with [subscribeBatched].
+         */
+        private val batchesFlow = MutableSharedFlow<List<E>>(0, config.extraBufferCapacity, config.onBufferOverflow)
+
+        /**
+         * Flows for the subscribers of given event types, one for each distinct set of types subscribed to, so that
+         * subscribers are only woken by the events they are interested in. Indexed by the [EventType.code] of each of
+         * their types in [typedFlowsByCode], which is replaced on every new set of types for a lock-free dispatch.
+         * Each flow is removed once all of its subscriptions, counted in [typedFlowSubscriptions], are cancelled.
+         */
+        private val typedFlows = HashMap<Set<EventType>, MutableSharedFlow<E>>()
+
+        private val typedFlowSubscriptions = HashMap<Set<EventType>, Int>()
+
+        @Volatile
+        private var typedFlowsByCode: Map<Int, List<Pair<Set<EventType>, MutableSharedFlow<E>>>> = emptyMap()
+
+        private val extraBufferCapacity = config.extraBufferCapacity
+
+        private val onBufferOverflow = config.onBufferOverflow
+
+        private val replay = config.replay
+
+        private val synchronousDispatch = config.synchronousDispatch
+
+        /**
+         * Non-suspending subscribers invoked on the emitting thread when [PublisherConfig.synchronousDispatch] is enabled.
+         */
+        private val directSubscribers = CopyOnWriteArrayList<Consumer<in E>>()
+
+        private val maxBatchSize = config.maxBatchSize
+
+        /**
+         * The coroutine scope used for emitting change events, the one of its scope group if any.
+         */
+        private val flowScope = ReactiveScope.flowScopeOf(config.scopeGroup)
+
+        /**
+         * Parent of the coroutines launched by the publisher, so that [close] cancels all of them.
          */
-        private val flowScope = ReactiveScope.flowScope
+        private val publisherJob = SupervisorJob(flowScope.coroutineContext[Job])
 
-        private var activatedEventTypes: MutableSet<EventType> = ConcurrentSkipListSet()
+        private val publisherScope = CoroutineScope(flowScope.coroutineContext + publisherJob)
+
+        /**
+         * The coroutine that delivers the events sent to the [eventChannel].
+         */
+        private val drainJob: Job
+
+        @Volatile
+        private var closed = false
+
+        /**
+         * The event types to publish, checked on every emission.
+         */
+        private val activatedEventTypes = EventTypeSet()
 
         init {
             log.trace { "FlowEventPublisher created: $name" }
 
             // Create a single persistent coroutine to handle all emissions for a fire and forget approach
-            flowScope.launch {
-                for (event in eventChannel) {
+            drainJob =
+                publisherScope.launch {
+                    val batch = ArrayList<E>()
+                    for (events in eventChannel) {
+                        // Drain the events already pending, to be delivered together
+                        batch.addAll(events)
+                        while (batch.size < maxBatchSize) {
+                            batch.addAll(eventChannel.tryReceive().getOrNull() ?: break)
+                        }
+                        for (from in batch.indices step maxBatchSize) {
+                            deliver(batch.subList(from, minOf(from + maxBatchSize, batch.size)))
+                        }
+                        batch.clear()
+                    }
+                }
+        }
+
+        private suspend fun deliver(batch: List<E>) {
+            if (batchesFlow.subscriptionCount.value > 0) {
+                try {
+                    batchesFlow.emit(batch.toList()) // This suspends if needed
+                } catch (exception: Exception) {
+                    log.error(exception) { "Unexpected error during emission of a batch of ${batch.size} events" }
+                }
+            }
+            // Without subscribers nor replay, emitted events are discarded anyway
+            val emitToAllSubscribers = replay > 0 || changesFlow.subscriptionCount.value > 0
+            val flowsByCode = typedFlowsByCode
+            if (emitToAllSubscribers || flowsByCode.isNotEmpty()) {
+                batch.forEach { event ->
                     try {
-                        changesFlow.emit(event) // This suspends if needed
+                        if (emitToAllSubscribers) {
+                            changesFlow.emit(event) // This suspends if needed
+                        }
+                        flowsByCode[event.type.code]?.forEach { (eventTypes, typedFlow) ->
+                            if (event.type in eventTypes && typedFlow.subscriptionCount.value > 0) {
+                                typedFlow.emit(event)
+                            }
+                        }
                     } catch (exception: Exception) {
                         log.error(exception) { "Unexpected error during event emission: $event" }
                     }
@@ -165,17 +302,96 @@ class FlowEventPublisher<ET : EventType, E: TransEvent<ET>>
             }
         }
 
+        /**
+         * Returns the flow of the events of the given types for a new subscription, creating it if it's the first
+         * subscription to them. Each call must be followed by a [releaseTypedFlow] once the subscription ends.
+         */
+        private fun acquireTypedFlow(eventTypes: Set<EventType>): MutableSharedFlow<E> =
+            synchronized(typedFlows) {
+                typedFlowSubscriptions.merge(eventTypes, 1, Int::plus)
+                typedFlows.getOrPut(eventTypes) {
+                    MutableSharedFlow<E>(0, extraBufferCapacity, onBufferOverflow).also { newFlow ->
+                        typedFlowsByCode =
+                            typedFlowsByCode.toMutableMap().apply {
+                                eventTypes.forEach { type ->
+                                    put(type.code, getOrDefault(type.code, emptyList()) + (eventTypes to newFlow))
+                                }
+                            }
+                    }
+                }
+            }
+
+        /**
+         * Removes the flow of the events of the given types once its last subscription ends, so that events
+         * are no longer dispatched to it and [synchronousDispatch] can skip the channel again.
+         */
+        private fun releaseTypedFlow(eventTypes: Set<EventType>) {
+            synchronized(typedFlows) {
+                val remaining = typedFlowSubscriptions.merge(eventTypes, -1) { count, _ -> (count - 1).takeIf { it > 0 } }
+                if (remaining == null) {
+                    val removedFlow = typedFlows.remove(eventTypes) ?: return
+                    typedFlowsByCode =
+                        typedFlowsByCode
+                            .mapValues { (_, flows) -> flows.filterNot { (_, typedFlow) -> typedFlow === removedFlow } }
+                            .filterValues { it.isNotEmpty() }
+                }
+            }
+        }
+
+        /**
+         * Whether any subscriber receives the events through the channel, so that
+         * [synchronousDispatch] avoids the channel altogether when there is none.
+         */
+        private val hasChannelSubscribers: Boolean
+            get() =
+                !synchronousDispatch || replay > 0 || changesFlow.subscriptionCount.value > 0 ||
+                    batchesFlow.subscriptionCount.value > 0 || typedFlowsByCode.isNotEmpty()
+
+        private fun dispatchDirectly(event: E) {
+            directSubscribers.forEach { subscriber ->
+                try {
+                    subscriber.accept(event)
+                } catch (exception: Exception) {
+                    log.error(exception) { "Unexpected error during synchronous dispatch of event: $event" }
+                }
+            }
+        }
+
         override fun emitAsync(event: E) {
             if (event.type in activatedEventTypes) {
+                dispatchDirectly(event)
+                if (!hasChannelSubscribers) return
                 // Use trySend so we don't block the caller
                 // If the channel is full, this will return the closed/failed result
-                val result = eventChannel.trySend(event)
+                val result = eventChannel.trySend(listOf(event))
                 if (!result.isSuccess) {
                     log.warn { "Could not send event to channel, buffer full or closed: $event" }
                 }
             }
         }
 
+        override suspend fun emit(event: E) {
+            if (event.type in activatedEventTypes) {
+                dispatchDirectly(event)
+                if (hasChannelSubscribers) {
+                    try {
+                        // Suspends while a bounded channel is full
+                        eventChannel.send(listOf(event))
+                    } catch (exception: ClosedSendChannelException) {
+                        log.warn(exception) { "Could not send event to channel, publisher closed: $event" }
+                    }
+                }
+            }
+        }
+
+        override fun emitAllAsync(events: Collection<E>) {
+            val activatedEvents = events.filter { it.type in activatedEventTypes }
+            activatedEvents.forEach(::dispatchDirectly)
+            if (activatedEvents.isNotEmpty() && hasChannelSubscribers && !eventChannel.trySend(activatedEvents).isSuccess) {
+                log.warn { "Could not send ${activatedEvents.size} events to channel, buffer full or closed" }
+            }
+        }
+
         /**
          * Legacy compatibility method to support the existing [Flow.Subscriber] interface.
          * Consider migrating to the Kotlin Flow-based subscription method instead.
@@ -184,49 +400,127 @@ class FlowEventPublisher<ET : EventType, E: TransEvent<ET>>
             log.trace { "Subscription registered to $subscriber" }
 
             val job =
-                flowScope.launch {
-                    changesFlow.collectLatest { event ->
-                        subscriber.onNext(event)
+                if (synchronousDispatch) {
+                    directSubscription(subscriber::onNext)
+                } else {
+                    publisherScope.launch {
+                        changesFlow.collectLatest { event ->
+                            subscriber.onNext(event)
+                        }
                     }
                 }
 
             subscriber.onSubscribe(ReactiveSubscription<TransEntity>(this, job))
         }
 
+        /**
+         * With [PublisherConfig.synchronousDispatch] enabled, the [action] is invoked directly on the emitting thread.
+         */
+        override fun subscribe(action: Consumer<in E>): TransEventSubscription<in TransEntity, ET, E> =
+            if (synchronousDispatch) {
+                log.trace { "Synchronous subscription registered to $name" }
+                ReactiveSubscription(this, directSubscription(action))
+            } else {
+                subscribe(action::accept)
+            }
+
+        /**
+         * Registers a subscriber invoked on the emitting thread, returning a job whose cancellation unregisters it.
+         */
+        private fun directSubscription(subscriber: Consumer<in E>): Job {
+            directSubscribers.add(subscriber)
+            return Job(publisherJob).apply { invokeOnCompletion { directSubscribers.remove(subscriber) } }
+        }
+
         /**
          * Subscribes to entity change events by providing an action to execute when changes occur.
          *
          * @param action The action to execute when the entity changes
          * @return A subscription that can be used to unsubscribe
          */
-        override fun subscribe(action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, E> {
-            log.trace { "Anonymous subscription registered to $name" }
+        override fun subscribe(action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, E> =
+            subscribe(DeliveryMode.Latest, action)
+
+        override fun subscribe(vararg eventTypes: ET, action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, E> =
+            subscribe(DeliveryMode.Latest, *eventTypes, action = action)
+
+        override fun subscribe(deliveryMode: DeliveryMode, action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, E> {
+            log.trace { "Anonymous subscription registered to $name with $deliveryMode delivery" }
 
             // Each subscription requires its own collection coroutine to handle events independently
             // This is a deliberate design pattern for reactive subscriptions
             @Suppress("kotlin:S6311")
             val job =
-                flowScope.launch {
-                    changesFlow.collectLatest { event ->
-                        action(event)
-                    }
+                publisherScope.launch {
+                    changesFlow.collectWith(deliveryMode, action)
                 }
             return ReactiveSubscription(this, job)
         }
 
-        override fun subscribe(vararg eventTypes: ET, action: suspend (E) -> Unit): TransEventSubscription<in TransEntity, ET, E> {
-            log.trace { "Subscription registered to $name for event types: ${eventTypes.joinToString()}" }
+        override fun subscribe(
+            deliveryMode: DeliveryMode,
+            vararg eventTypes: ET,
+            action: suspend (E) -> Unit
+        ): TransEventSubscription<in TransEntity, ET, E> {
+            log.trace { "Subscription registered to $name with $deliveryMode delivery for event types: ${eventTypes.joinToString()}" }
+
+            // Replayed events are only kept by the flow of all events, otherwise each set of
+            // types has its own flow so that the subscriber isn't woken by the rest of events
+            val typeSet = eventTypes.toSet<EventType>()
+            val events =
+                if (replay > 0) {
+                    changesFlow.filter { it.type in eventTypes }
+                } else {
+                    acquireTypedFlow(typeSet)
+                }
 
             // Each subscription requires its own collection coroutine to handle events independently
             // This is a deliberate design pattern for reactive subscriptions
             @Suppress("kotlin:S6311")
             val job =
-                flowScope.launch {
-                    changesFlow.collectLatest { event ->
-                        if (event.type in eventTypes) {
-                            action(event)
+                publisherScope.launch {
+                    events.collectWith(deliveryMode, action)
+                }
+            if (replay == 0) {
+                job.invokeOnCompletion { releaseTypedFlow(typeSet) }
+            }
+            return ReactiveSubscription(this, job)
+        }
+
+        /**
+         * Collects the events delivering them to the [action] as set by the [deliveryMode].
+         */
+        private suspend fun kotlinx.coroutines.flow.Flow<E>.collectWith(deliveryMode: DeliveryMode, action: suspend (E) -> Unit) {
+            when (deliveryMode) {
+                DeliveryMode.Sequential -> collect { action(it) }
+                DeliveryMode.Latest -> collectLatest { action(it) }
+                DeliveryMode.Conflated -> conflate().collect { action(it) }
+                is DeliveryMode.Buffered ->
+                    if (deliveryMode.parallelism == 1) {
+                        buffer(deliveryMode.capacity).collect { action(it) }
+                    } else {
+                        coroutineScope {
+                            val pendingEvents = buffer(deliveryMode.capacity).produceIn(this)
+                            repeat(deliveryMode.parallelism) {
+                                launch {
+                                    for (event in pendingEvents) action(event)
+                                }
+                            }
                         }
                     }
+            }
+        }
+
+        override fun subscribeBatched(action: suspend (List<E>) -> Unit): TransEventSubscription<in TransEntity, ET, E> {
+            log.trace { "Batched subscription registered to $name" }
+
+            // Every batch is processed, since cancelling one in favour of the next would skip its events
+            @Suppress("kotlin:S6311")
+            val job =
+                publisherScope.launch {
+                    batchesFlow.collect { batch ->
+                        action(batch)
+                    }
                 }
             return ReactiveSubscription(this, job)
         }
@@ -245,6 +539,31 @@ class FlowEventPublisher<ET : EventType, E: TransEvent<ET>>
             }
         }
 
+        /**
+         * Whether the publisher has any active subscription, so that it can be closed when it has none,
+         * including the collectors of [changes] outside the publisher.
+         */
+        val hasSubscribers: Boolean
+            get() =
+                directSubscribers.isNotEmpty() || publisherJob.children.any { it !== drainJob && it.isActive } ||
+                    changesFlow.subscriptionCount.value > 0 || batchesFlow.subscriptionCount.value > 0 ||
+                    typedFlowsByCode.values.any { flows -> flows.any { (_, typedFlow) -> typedFlow.subscriptionCount.value > 0 } }
+
+        /**
+         * Closes the publisher, cancelling all its subscriptions and the coroutine that delivers the events,
+         * so that they, along with the pending events, become eligible for garbage collection. Events emitted
+         * afterward are discarded.
+         */
+        override fun close() {
+            if (!closed) {
+                closed = true
+                eventChannel.close()
+                publisherJob.cancel()
+                directSubscribers.clear()
+                log.trace { "FlowEventPublisher closed: $name" }
+            }
+        }
+
         override fun toString() = "FlowEventPublisher(id=$name, activatedEventTypes=$activatedEventTypes)"
 
         inner class ReactiveSubscription<T: TransEntity>(override val source: TransEventPublisher<ET, E>, private val job: Job)
@@ -0,0 +1,184 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.entity.ReactiveEntityBase
+import net.transgressoft.commons.event.MutationEvent.Type.MUTATE
+import mu.KotlinLogging
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Flow
+import java.util.function.Consumer
+
+/**
+ * Shared bus where many reactive entities publish their [MutationEvent]s, instead of each of them creating its
+ * own [FlowEventPublisher] with its channel, flow and coroutine once anyone subscribes to it.
+ *
+ * Entities are attached to the bus with [attach], and their mutations are sent to one of a fixed number of
+ * stripes by the hash of their id, each one a [FlowEventPublisher], so that the mutations of each entity are
+ * delivered in order while those of different entities are delivered in parallel. Subscribers receive the
+ * mutations of every attached entity with [subscribe], or of a single one with [subscribeTo]. This way the
+ * cost of tracking the mutations of an entity is a reference to the bus, instead of a whole publisher.
+ *
+ * Used by repositories to track the mutations of the entities they store.
+ *
+ * @param K The type of the ids of the entities
+ * @param name A descriptive name for the bus, used in logging and debugging
+ * @param stripeCount Number of stripes the mutations are delivered through, [ReactiveScope.flowParallelism] by default
+ * @param config Configuration of the publisher of each stripe
+ */
+class MutationEventBus<K : Comparable<K>>
+    @JvmOverloads
+    constructor(
+        private val name: String,
+        stripeCount: Int = ReactiveScope.flowParallelism,
+        config: PublisherConfig = PublisherConfig.DEFAULT
+    ) : AutoCloseable {
+        private val log = KotlinLogging.logger {}
+
+        private val stripes: List<FlowEventPublisher<MutationEvent.Type, MutationEvent<K, *>>>
+
+        /**
+         * Actions of the subscribers to the mutations of a single entity, by its id.
+         */
+        private val entitySubscribers = ConcurrentHashMap<K, CopyOnWriteArrayList<suspend (MutationEvent<K, *>) -> Unit>>()
+
+        /**
+         * Subscriptions of each stripe that dispatch the mutations to the [entitySubscribers], only started
+         * while there are any, so that a bus nobody calls [subscribeTo] on runs no collector for them.
+         * Guarded by the lock of [entitySubscribers].
+         */
+        private var entityDispatchers: List<Flow.Subscription>? = null
+
+        init {
+            require(stripeCount > 0) { "stripeCount must be positive" }
+            stripes =
+                List(stripeCount) { index ->
+                    FlowEventPublisher<MutationEvent.Type, MutationEvent<K, *>>("$name-$index", config).apply {
+                        activateEvents(MUTATE)
+                    }
+                }
+            log.trace { "MutationEventBus created: $name with $stripeCount stripes" }
+        }
+
+        /**
+         * Whether the stripes are dispatching the mutations to subscribers of single entities.
+         */
+        internal val isDispatchingToEntities: Boolean
+            get() = synchronized(entitySubscribers) { entityDispatchers != null }
+
+        private fun stripeOf(id: K) = stripes[Math.floorMod(id.hashCode(), stripes.size)]
+
+        /**
+         * Attaches the entity to the bus, so that its mutations are published to it from then on.
+         *
+         * @return A subscription whose cancellation detaches the entity from the bus
+         */
+        fun attach(entity: ReactiveEntityBase<K, *>): Flow.Subscription {
+            entity.attachTo(this)
+            return BusSubscription { entity.detachFrom(this) }
+        }
+
+        /**
+         * Publishes the mutation of an entity to the subscribers of the bus, asynchronously.
+         */
+        fun emitAsync(event: MutationEvent<K, *>) = stripeOf(event.newEntity.id).emitAsync(event)
+
+        /**
+         * Subscribes to the mutations of all the entities attached to the bus. Mutations of each entity
+         * are received in order, but those of different entities may be received concurrently.
+         *
+         * @param action The action to execute with each mutation
+         * @return A subscription that can be used to unsubscribe
+         */
+        fun subscribe(action: suspend (MutationEvent<K, *>) -> Unit): Flow.Subscription {
+            val subscriptions = stripes.map { it.subscribe(DeliveryMode.Sequential, action) }
+            return BusSubscription { subscriptions.forEach { it.cancel() } }
+        }
+
+        /**
+         * Subscribes to the mutations of all the entities attached to the bus with a non-suspending action,
+         * which is invoked on the mutating thread when the bus has [PublisherConfig.synchronousDispatch] enabled.
+         *
+         * @param action The action to execute with each mutation
+         * @return A subscription that can be used to unsubscribe
+         */
+        fun subscribe(action: Consumer<in MutationEvent<K, *>>): Flow.Subscription {
+            val subscriptions = stripes.map { it.subscribe(action) }
+            return BusSubscription { subscriptions.forEach { it.cancel() } }
+        }
+
+        /**
+         * Subscribes to the mutations of the entity with the given id only, in order.
+         *
+         * @param id The id of the entity
+         * @param action The action to execute with each mutation
+         * @return A subscription that can be used to unsubscribe
+         */
+        fun subscribeTo(id: K, action: suspend (MutationEvent<K, *>) -> Unit): Flow.Subscription {
+            synchronized(entitySubscribers) {
+                entitySubscribers.computeIfAbsent(id) { CopyOnWriteArrayList() }.add(action)
+                if (entityDispatchers == null) {
+                    // Every mutation must be delivered, so they are processed sequentially in each stripe
+                    entityDispatchers =
+                        stripes.map { stripe ->
+                            stripe.subscribe(DeliveryMode.Sequential) { event ->
+                                entitySubscribers[event.newEntity.id]?.forEach { action -> action(event) }
+                            }
+                        }
+                }
+            }
+            return BusSubscription {
+                synchronized(entitySubscribers) {
+                    entitySubscribers.computeIfPresent(id) { _, actions ->
+                        actions.remove(action)
+                        actions.ifEmpty { null }
+                    }
+                    if (entitySubscribers.isEmpty()) stopEntityDispatchers()
+                }
+            }
+        }
+
+        private fun stopEntityDispatchers() {
+            entityDispatchers?.forEach { it.cancel() }
+            entityDispatchers = null
+        }
+
+        /**
+         * Closes the publishers of all the stripes, cancelling every subscription.
+         */
+        override fun close() {
+            stripes.forEach { it.close() }
+            synchronized(entitySubscribers) {
+                entitySubscribers.clear()
+                stopEntityDispatchers()
+            }
+            log.trace { "MutationEventBus closed: $name" }
+        }
+
+        override fun toString() = "MutationEventBus(name=$name, stripes=${stripes.size})"
+
+        private class BusSubscription(private val onCancel: () -> Unit) : Flow.Subscription {
+
+            override fun request(n: Long) {
+                error("Events cannot be requested on demand")
+            }
+
+            override fun cancel() = onCancel()
+        }
+    }
@@ -19,8 +19,32 @@ package net.transgressoft.commons.event
 
 import net.transgressoft.commons.entity.ReactiveEntity
 
-data class ReactiveMutationEvent<K, R>(override val newEntity: R, override val oldEntity: R)
-: MutationEvent<K, R> where K : Comparable<K>, R : ReactiveEntity<K, R> {
+data class ReactiveMutationEvent<K, R>(
+    override val newEntity: R,
+    override val oldEntity: R,
+    override val changes: List<PropertyChange> = emptyList()
+) : MutationEvent<K, R> where K : Comparable<K>, R : ReactiveEntity<K, R> {
 
     override val type = MutationEvent.Type.MUTATE
+}
+
+/**
+ * [MutationEvent] of an entity that records its mutations as property [changes] only, without
+ * a copy of the entity before them, so that mutating it doesn't allocate a whole copy. Its
+ * [oldEntity] throws [UnsupportedOperationException], while [oldEntityOrNull] is `null`.
+ *
+ * @see net.transgressoft.commons.entity.MutationSnapshot.PROPERTY_CHANGES
+ */
+data class PropertyMutationEvent<K, R>(
+    override val newEntity: R,
+    override val changes: List<PropertyChange>
+) : MutationEvent<K, R> where K : Comparable<K>, R : ReactiveEntity<K, R> {
+
+    override val type = MutationEvent.Type.MUTATE
+
+    override val oldEntity: R
+        get() = throw UnsupportedOperationException("Mutations of ${newEntity.id} are recorded as property changes only: $changes")
+
+    override val oldEntityOrNull: R?
+        get() = null
 }
\ No newline at end of file
@@ -17,9 +17,15 @@
 
 package net.transgressoft.commons.event
 
+import mu.KotlinLogging
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
 
 /**
  * Centralized manager for coroutine scopes used throughout the reactive system.
@@ -37,17 +43,57 @@ import kotlinx.coroutines.SupervisorJob
  * 4. Clean cancellation of ongoing operations when needed
  *
  * The default scopes use limited parallelism to prevent resource exhaustion while
- * maintaining responsive operation.
+ * maintaining responsive operation. The parallelism of event flows is sized by default from the
+ * available processors, and both can be set with [configure] or with the system properties
+ * [FLOW_PARALLELISM_PROPERTY] and [IO_PARALLELISM_PROPERTY], whose invalid values are ignored with a warning. On JDK 21 or later, [useVirtualThreads]
+ * runs the event flows on virtual threads instead, so that blocking subscribers don't starve them.
+ *
+ * Publishers and repositories can be isolated from the rest in scope groups, see [configureGroup],
+ * selected with [PublisherConfig.scopeGroup] and [net.transgressoft.commons.persistence.json.JsonRepositoryConfig.scopeGroup].
+ * File I/O, including the JSON serialization of the repositories, always runs on the I/O dispatcher,
+ * apart from the threads that deliver events.
  *
  * @see flowScope
  * @see ioScope
  */
 object ReactiveScope {
+    /**
+     * System property with the number of threads that process event flows at the same time.
+     */
+    const val FLOW_PARALLELISM_PROPERTY = "net.transgressoft.commons.flowParallelism"
+
+    /**
+     * System property with the number of threads that perform I/O operations at the same time.
+     */
+    const val IO_PARALLELISM_PROPERTY = "net.transgressoft.commons.ioParallelism"
+
+    // Declared before the properties that read the parallelism, which may log an invalid value
+    private val log = KotlinLogging.logger(javaClass.name)
+
+    /**
+     * Number of threads that process event flows at the same time, the available processors by default.
+     */
+    var flowParallelism: Int = parallelismProperty(FLOW_PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors())
+        private set
+
+    /**
+     * Number of threads that perform I/O operations at the same time, 1 by default to access files sequentially.
+     */
+    var ioParallelism: Int = parallelismProperty(IO_PARALLELISM_PROPERTY, 1)
+        private set
+
     // Default scope with limited parallelism to prevent resource exhaustion
     // but ensuring all entity events are processed
-    private var defaultFlowScope: CoroutineScope = CoroutineScope(Dispatchers.Default.limitedParallelism(4) + SupervisorJob())
+    private var defaultFlowScope: CoroutineScope = newFlowScope(flowParallelism)
+
+    private var defaultIoScope: CoroutineScope = newIoScope(ioParallelism)
 
-    private var defaultIoScope: CoroutineScope = CoroutineScope(Dispatchers.IO.limitedParallelism(1) + SupervisorJob())
+    private val scopeGroups = ConcurrentHashMap<String, ScopeGroup>()
+
+    private class ScopeGroup(flowParallelism: Int, ioParallelism: Int) {
+        val flowScope = newFlowScope(flowParallelism)
+        val ioScope = newIoScope(ioParallelism)
+    }
 
     /**
      * Sets the default scope for all reactive entities that don't specify their own.
@@ -61,6 +107,113 @@ object ReactiveScope {
      */
     var ioScope: CoroutineScope = defaultIoScope
 
+    /**
+     * The factory of executors that start a new virtual thread for each task, which is only available from JDK 21.
+     * Looked up by reflection since the library targets earlier JDKs.
+     */
+    private val newVirtualThreadPerTaskExecutor =
+        runCatching { Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor") }.getOrNull()
+
+    /**
+     * Whether the running JVM supports virtual threads.
+     */
+    val virtualThreadsSupported: Boolean
+        get() = newVirtualThreadPerTaskExecutor != null
+
+    /**
+     * Dispatcher that runs each coroutine task on a new virtual thread, created on first use and shared afterward.
+     *
+     * @throws UnsupportedOperationException If the running JVM doesn't support virtual threads
+     */
+    val virtualThreadDispatcher: CoroutineDispatcher by lazy {
+        val factory = newVirtualThreadPerTaskExecutor ?: throw UnsupportedOperationException("Virtual threads require JDK 21 or later")
+        (factory.invoke(null) as ExecutorService).asCoroutineDispatcher()
+    }
+
+    /**
+     * Sets the [flowScope] to run on virtual threads, so that subscriber actions and [java.util.concurrent.Flow.Subscriber.onNext]
+     * calls that block don't hold the shared threads of the default scope. Publishers created afterward use it,
+     * until [resetDefaultFlowScope] is called.
+     *
+     * @throws UnsupportedOperationException If the running JVM doesn't support virtual threads
+     */
+    fun useVirtualThreads() {
+        flowScope = CoroutineScope(virtualThreadDispatcher + SupervisorJob())
+    }
+
+    /**
+     * Sets the parallelism of the default scopes, which publishers and repositories created afterward use.
+     * If the [flowScope] or the [ioScope] are the default ones, they are replaced by the new default ones.
+     *
+     * @param flowParallelism Number of threads that process event flows at the same time
+     * @param ioParallelism Number of threads that perform I/O operations at the same time
+     */
+    @JvmOverloads
+    fun configure(flowParallelism: Int = this.flowParallelism, ioParallelism: Int = this.ioParallelism) {
+        require(flowParallelism > 0) { "flowParallelism must be positive" }
+        require(ioParallelism > 0) { "ioParallelism must be positive" }
+        synchronized(this) {
+            if (flowParallelism != this.flowParallelism) {
+                val previousDefault = defaultFlowScope
+                this.flowParallelism = flowParallelism
+                defaultFlowScope = newFlowScope(flowParallelism)
+                if (flowScope == previousDefault) flowScope = defaultFlowScope
+            }
+            if (ioParallelism != this.ioParallelism) {
+                val previousDefault = defaultIoScope
+                this.ioParallelism = ioParallelism
+                defaultIoScope = newIoScope(ioParallelism)
+                if (ioScope == previousDefault) ioScope = defaultIoScope
+            }
+        }
+    }
+
+    /**
+     * Sets the parallelism of a scope group, isolating the publishers and repositories in it from the rest,
+     * so that a busy group doesn't delay the others. Groups limit the threads used by them on the shared
+     * dispatchers, so several groups don't create more threads than the ones in the dispatchers. Must be
+     * called before the members of the group are created, since they obtain their scopes on creation.
+     *
+     * @param group The name of the group
+     * @param flowParallelism Number of threads that process the event flows of the group at the same time
+     * @param ioParallelism Number of threads that perform the I/O operations of the group at the same time
+     */
+    @JvmOverloads
+    fun configureGroup(group: String, flowParallelism: Int, ioParallelism: Int = 1) {
+        require(flowParallelism > 0) { "flowParallelism must be positive" }
+        require(ioParallelism > 0) { "ioParallelism must be positive" }
+        scopeGroups[group] = ScopeGroup(flowParallelism, ioParallelism)
+    }
+
+    /**
+     * Returns the scope for the event flows of the given group, or the [flowScope] if there is no group.
+     * Groups not configured with [configureGroup] get the parallelism of the default scopes.
+     */
+    fun flowScopeOf(group: String?): CoroutineScope = group?.let { scopeGroup(it).flowScope } ?: flowScope
+
+    /**
+     * Returns the scope for the I/O operations of the given group, or the [ioScope] if there is no group.
+     * Groups not configured with [configureGroup] get the parallelism of the default scopes.
+     */
+    fun ioScopeOf(group: String?): CoroutineScope = group?.let { scopeGroup(it).ioScope } ?: ioScope
+
+    private fun scopeGroup(group: String) = scopeGroups.computeIfAbsent(group) { ScopeGroup(flowParallelism, ioParallelism) }
+
+    private fun newFlowScope(parallelism: Int) = CoroutineScope(Dispatchers.Default.limitedParallelism(parallelism) + SupervisorJob())
+
+    private fun newIoScope(parallelism: Int) = CoroutineScope(Dispatchers.IO.limitedParallelism(parallelism) + SupervisorJob())
+
+    /**
+     * Reads the parallelism from the given system property, falling back to the default if it's not a positive integer,
+     * since failing here would make this object, and every publisher and repository, unusable.
+     */
+    internal fun parallelismProperty(name: String, default: Int): Int {
+        val value = System.getProperty(name) ?: return default
+        return value.toIntOrNull()?.takeIf { it > 0 } ?: default.also {
+            log.warn { "System property $name must be a positive integer, but was $value. Using $default instead" }
+        }
+    }
+
     fun resetDefaultFlowScope() {
         flowScope = defaultFlowScope
     }
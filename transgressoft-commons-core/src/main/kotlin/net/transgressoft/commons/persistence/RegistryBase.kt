@@ -18,15 +18,25 @@
 package net.transgressoft.commons.persistence
 
 import net.transgressoft.commons.entity.IdentifiableEntity
+import net.transgressoft.commons.entity.ReactiveEntity
+import net.transgressoft.commons.entity.ReactiveEntityBase
 import net.transgressoft.commons.event.CrudEvent
 import net.transgressoft.commons.event.CrudEvent.Type.UPDATE
 import net.transgressoft.commons.event.FlowEventPublisher
+import net.transgressoft.commons.event.MutationEvent
+import net.transgressoft.commons.event.MutationEventBus
+import net.transgressoft.commons.event.PropertyChange
+import net.transgressoft.commons.event.PublisherConfig
 import net.transgressoft.commons.event.StandardCrudEvent.Read
 import net.transgressoft.commons.event.StandardCrudEvent.Update
 import net.transgressoft.commons.event.TransEventPublisher
 import mu.KotlinLogging
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.Flow
 import java.util.function.Consumer
+import java.util.function.Function
 import java.util.function.Predicate
 import java.util.stream.Collectors
 
@@ -42,11 +52,13 @@ import java.util.stream.Collectors
  * - Run actions on entities that automatically detect and publish changes
  * - Rich query capabilities with predicate-based searches
  * - Event publishing for entity reads and modifications
- * - Thread-safe operation
+ * - Constant time lookups by unique id and by user defined secondary indexes
+ * - Thread-safe operation when [entitiesById] is a [ConcurrentMap]
  *
  * @param K The type of entity identifier, must be [Comparable]
  * @param T The type of entity being stored, must implement [IdentifiableEntity]
- * @property entitiesById The internal map storing entities by their IDs
+ * @property entitiesById The internal map storing entities by their IDs. A [ConcurrentMap] makes the registry
+ *   safe to be used from several threads, at the cost of locking the updates of each entity and its indexes
  *
  * @see [net.transgressoft.commons.event.TransEventSubscriber]
  */
@@ -57,28 +69,263 @@ abstract class RegistryBase<K, T : IdentifiableEntity<K>>(
     Registry<K, T> where K : Comparable<K> {
     private val log = KotlinLogging.logger(javaClass.name)
 
+    /**
+     * Whether [entitiesById] is a [ConcurrentMap], so the registry must be safe for concurrent use.
+     */
+    protected val isConcurrent = entitiesById is ConcurrentMap
+
+    /**
+     * Striped locks that make the change of an entity in [entitiesById] and in the indexes a single
+     * operation, only when [isConcurrent], without serializing the changes of unrelated entities.
+     */
+    private val entityLocks: Array<Any>? = if (isConcurrent) Array(LOCK_STRIPES) { Any() } else null
+
+    /**
+     * Built-in index of the entities by their [IdentifiableEntity.uniqueId].
+     */
+    private val uniqueIdIndex = SecondaryIndex<K, T>(true, { it.uniqueId })
+
+    /**
+     * User defined indexes by their name, created with [createIndex] or [createUniqueIndex].
+     */
+    private val indexesByName: MutableMap<String, SecondaryIndex<K, T>> = ConcurrentHashMap()
+
+    /**
+     * Subscriptions to the mutations of the reactive entities in the registry, only while [tracksMutations] is enabled
+     * or there are user defined indexes to keep up to date, so that untracked entities neither snapshot their state
+     * nor publish anything on their mutations. Entities extending [ReactiveEntityBase] are attached to the [mutationBus].
+     */
+    private val mutationSubscriptions: MutableMap<K, Flow.Subscription> = ConcurrentHashMap()
+
+    private val mutationBusDelegate =
+        lazy {
+            MutationEventBus<K>("${javaClass.simpleName}-mutations", config = PublisherConfig.SYNCHRONOUS).apply {
+                @Suppress("UNCHECKED_CAST")
+                subscribe(Consumer { event -> onEntityMutated(event.newEntity as T, event.changes) })
+            }
+        }
+
+    /**
+     * Bus where the entities extending [ReactiveEntityBase] publish their mutations for the registry, so that
+     * tracking them doesn't create a publisher for each entity. Created when the first entity is attached.
+     * Mutations are dispatched on the mutating thread, so that the indexes are up to date once a mutation returns.
+     */
+    private val mutationBus by mutationBusDelegate
+
+    /**
+     * Whether the [mutationBus] runs collectors to dispatch the mutations to subscribers of single entities.
+     */
+    internal val isDispatchingToEntitySubscribers: Boolean
+        get() = mutationBusDelegate.isInitialized() && mutationBus.isDispatchingToEntities
+
+    /**
+     * Whether the registry subscribes to the [MutationEvent]s of its reactive entities regardless of
+     * any user defined index, which subclasses that need [onEntityMutated] to be called on them must enable.
+     * A function rather than a property, so that overrides already apply while the initial entities are added.
+     */
+    protected open fun tracksMutations(): Boolean = false
+
     init {
         // A registry can't create or delete entities,
         // so the CREATE and DELETE events are disabled by default.
         // READ is disabled also because its use case is not clear yet
         activateEvents(UPDATE)
+
+        entitiesById.values.forEach(::onEntityAdded)
+    }
+
+    private fun isTrackingMutations() = tracksMutations() || indexesByName.isNotEmpty()
+
+    /**
+     * Runs the given action holding the lock of the entity with the given id when [isConcurrent].
+     * Changes to [entitiesById] that must be consistent with the indexes have to be performed inside it.
+     */
+    protected fun <R> withEntityLock(id: K, action: () -> R): R =
+        if (entityLocks == null) {
+            action()
+        } else {
+            synchronized(entityLocks[Math.floorMod(id.hashCode(), entityLocks.size)]) { action() }
+        }
+
+    /**
+     * Runs the given action holding the locks of all the entities with the given ids when [isConcurrent], so that
+     * no other change to any of them is interleaved with the action. The locks are taken in ascending order, so that
+     * two callers locking overlapping entities don't deadlock.
+     */
+    protected fun <R> withEntityLocks(ids: Collection<K>, action: () -> R): R =
+        if (entityLocks == null) {
+            action()
+        } else {
+            withStripeLocks(entityLocks, ids.mapTo(sortedSetOf()) { Math.floorMod(it.hashCode(), entityLocks.size) }.iterator(), action)
+        }
+
+    private fun <R> withStripeLocks(locks: Array<Any>, stripes: Iterator<Int>, action: () -> R): R =
+        if (stripes.hasNext()) {
+            synchronized(locks[stripes.next()]) { withStripeLocks(locks, stripes, action) }
+        } else {
+            action()
+        }
+
+    /**
+     * Updates the indexes with the given entity and subscribes to its mutations if needed.
+     * Must be called whenever an entity is added to [entitiesById].
+     */
+    protected fun onEntityAdded(entity: T) {
+        updateIndexes(entity)
+        subscribeToMutations(entity)
+    }
+
+    /**
+     * Removes the given entity from the indexes, cancels the subscription to its mutations
+     * and releases its publisher if nobody else is subscribed to it.
+     * Must be called whenever an entity is removed from [entitiesById].
+     */
+    protected fun onEntityRemoved(entity: T) {
+        uniqueIdIndex.remove(entity)
+        indexesByName.values.forEach { it.remove(entity) }
+        mutationSubscriptions.remove(entity.id)?.cancel()
+        releasePublisher(entity)
+    }
+
+    /**
+     * Removes all the entries from the indexes, cancels all subscriptions to entity mutations
+     * and releases the publishers of the given entities that nobody else is subscribed to.
+     * Must be called whenever [entitiesById] is cleared.
+     */
+    protected fun onEntitiesCleared(removedEntities: Collection<T>) {
+        uniqueIdIndex.clear()
+        indexesByName.values.forEach { it.clear() }
+        cancelMutationSubscriptions()
+        removedEntities.forEach(::releasePublisher)
+    }
+
+    /**
+     * Closes the publisher of a removed reactive entity once the registry's subscription is cancelled, if it has
+     * no other subscribers, so that entities removed from the registry don't hold their coroutines and channels.
+     */
+    private fun releasePublisher(entity: T) {
+        if (entity is ReactiveEntityBase<*, *>) {
+            entity.releasePublisherIfUnobserved()
+        }
     }
 
+    /**
+     * Called when an entity of the registry is found to be mutated, either by an action run through [runForSingle],
+     * [runForMany], [runMatching] or [runForAll], or by a [MutationEvent] published by a reactive entity if mutations
+     * are being tracked. Keeps the indexes up to date, so overriding implementations must call it.
+     *
+     * @param changes The properties changed by the mutation, empty if they are unknown
+     */
+    protected open fun onEntityMutated(entity: T, changes: List<PropertyChange> = emptyList()) = reindex(entity, changes)
+
+    /**
+     * Updates the indexes with the given entity, provided that it is still the one stored under its id.
+     * Only the indexes whose key depends on the changed properties are updated, or all if they are unknown.
+     */
+    private fun reindex(entity: T, changes: List<PropertyChange> = emptyList()) =
+        withEntityLock(entity.id) {
+            if (entitiesById[entity.id] === entity) {
+                updateIndexes(entity, changes)
+            }
+        }
+
+    private fun updateIndexes(entity: T, changes: List<PropertyChange> = emptyList()) {
+        uniqueIdIndex.update(entity)
+        indexesByName.values.forEach {
+            if (it.dependsOn(changes)) it.update(entity)
+        }
+    }
+
+    /**
+     * Attaches the entity to the [mutationBus] if it extends [ReactiveEntityBase], or subscribes to its mutations
+     * if it is another reactive entity, provided that the registry is tracking mutations.
+     */
     @Suppress("UNCHECKED_CAST")
+    private fun subscribeToMutations(entity: T) {
+        if (!isTrackingMutations()) return
+        val subscription =
+            when (entity) {
+                is ReactiveEntityBase<*, *> -> mutationBus.attach(entity as ReactiveEntityBase<K, *>)
+                is ReactiveEntity<*, *> ->
+                    (entity as ReactiveEntity<K, *>).subscribe { event -> onEntityMutated(event.newEntity as T, event.changes) }
+                else -> return
+            }
+        mutationSubscriptions.put(entity.id, subscription)?.cancel()
+    }
+
+    private fun cancelMutationSubscriptions() {
+        mutationSubscriptions.values.forEach { it.cancel() }
+        mutationSubscriptions.clear()
+    }
+
+    /**
+     * Closes the publisher of the registry and the bus of the mutations of its entities, cancelling their subscriptions
+     * and detaching the entities from the bus, so that they neither keep publishing their mutations to it nor hold it.
+     */
+    override fun close() {
+        cancelMutationSubscriptions()
+        publisher.close()
+        if (mutationBusDelegate.isInitialized()) {
+            mutationBus.close()
+        }
+    }
+
+    override fun createIndex(name: String, keyExtractor: Function<in T, *>) = createIndex(name, false, null, keyExtractor)
+
+    override fun createUniqueIndex(name: String, keyExtractor: Function<in T, *>) = createIndex(name, true, null, keyExtractor)
+
+    override fun createIndex(name: String, properties: Set<String>, keyExtractor: Function<in T, *>) =
+        createIndex(name, false, properties, keyExtractor)
+
+    override fun createUniqueIndex(name: String, properties: Set<String>, keyExtractor: Function<in T, *>) =
+        createIndex(name, true, properties, keyExtractor)
+
+    private fun createIndex(name: String, unique: Boolean, properties: Set<String>?, keyExtractor: Function<in T, *>) {
+        val wasTrackingMutations = isTrackingMutations()
+        val index = SecondaryIndex(unique, keyExtractor, properties?.toSet())
+        require(indexesByName.putIfAbsent(name, index) == null) { "An index named '$name' already exists" }
+
+        entitiesById.values.forEach {
+            index.update(it)
+            if (!wasTrackingMutations) subscribeToMutations(it)
+        }
+        log.debug { "Index '$name' created with ${entitiesById.size} entities" }
+    }
+
+    override fun dropIndex(name: String): Boolean {
+        val dropped = indexesByName.remove(name) != null
+        if (dropped && !isTrackingMutations()) {
+            cancelMutationSubscriptions()
+        }
+        return dropped
+    }
+
     override fun runForSingle(id: K, entityAction: Consumer<in T>): Boolean {
         val entity = entitiesById[id] ?: return false
-        val previousHashcode = entity.hashCode()
-        val entityBeforeUpdate = entity.clone() as T
+        val entityBeforeUpdate = runAction(entity, entityAction) ?: return false
 
-        entityAction.accept(entity)
+        onEntityMutated(entity)
+        log.debug { "Entity with id ${entity.id} was modified as a result of an action" }
+        publisher.emitAsync(Update(entity, entityBeforeUpdate))
+        return true
+    }
 
-        if (previousHashcode != entity.hashCode()) {
-            log.debug { "Entity with id ${entity.id} was modified as a result of an action" }
-            publisher.emitAsync(Update(entity, entityBeforeUpdate))
-            return true
+    /**
+     * Runs the action on the entity, returning the entity before the action if it was modified, or `null` otherwise.
+     * A [ReactiveEntityBase] detects its own mutations, so with versioned mutations it is only cloned if the action
+     * mutates it, and its mutations are published as a single one. Other entities are cloned beforehand and compared
+     * by [hashCode].
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun runAction(entity: T, entityAction: Consumer<in T>): T? =
+        if (entity is ReactiveEntityBase<*, *>) {
+            entity.captureMutations { entityAction.accept(entity) } as T?
+        } else {
+            val previousHashCode = entity.hashCode()
+            val entityBeforeChange = entity.clone() as T
+            entityAction.accept(entity)
+            entityBeforeChange.takeIf { previousHashCode != entity.hashCode() }
         }
-        return false
-    }
 
     override fun runForMany(ids: Set<K>, entityAction: Consumer<in T>): Boolean =
         ids.mapNotNull { entitiesById[it] }.let {
@@ -89,21 +336,20 @@ abstract class RegistryBase<K, T : IdentifiableEntity<K>>(
             }
         }
 
-    @Suppress("UNCHECKED_CAST")
     private fun runActionAndReplaceModifiedEntities(entities: Set<T>, entityAction: Consumer<in T>): Boolean {
         val updates =
             entities.mapNotNull { entity ->
-                val previousHashCode = entity.hashCode()
-                val entityBeforeChange = entity.clone() as T
-
-                entityAction.accept(entity)
+                val entityBeforeChange = runAction(entity, entityAction)
 
-                if (previousHashCode != entity.hashCode()) {
-                    // Ensure the entity in the map is still this entity
-                    entitiesById.computeIfPresent(entity.id) { _, current ->
-                        if (current == entityBeforeChange)
-                            entity
-                        else current
+                if (entityBeforeChange != null) {
+                    withEntityLock(entity.id) {
+                        // Ensure the entity in the map is still this entity
+                        entitiesById.computeIfPresent(entity.id) { _, current ->
+                            if (current == entityBeforeChange)
+                                entity
+                            else current
+                        }
+                        onEntityMutated(entity)
                     }
                     log.debug { "Entity with id ${entity.id} was modified as a result of an action" }
                     Pair(entity, entityBeforeChange)
@@ -165,14 +411,43 @@ abstract class RegistryBase<K, T : IdentifiableEntity<K>>(
             }
 
     override fun findByUniqueId(uniqueId: String): Optional<out T> =
-        entitiesById.values.stream()
-            .filter { it.uniqueId == uniqueId }
-            .findAny()
+        Optional.ofNullable(findIndexedByUniqueId(uniqueId) ?: findAndIndexByUniqueId(uniqueId))
             .also {
                 if (it.isPresent)
                     publisher.emitAsync(Read(it.get()))
             }
 
+    private fun findIndexedByUniqueId(uniqueId: String): T? {
+        val indexed = uniqueIdIndex.find(uniqueId).firstOrNull() ?: return null
+        return if (indexed.uniqueId == uniqueId && entitiesById[indexed.id] === indexed) {
+            indexed
+        } else {
+            // The entity was replaced, or mutated without publishing it, since the index was updated
+            withEntityLock(indexed.id) {
+                if (entitiesById[indexed.id] === indexed) updateIndexes(indexed) else uniqueIdIndex.evict(uniqueId, indexed)
+            }
+            null
+        }
+    }
+
+    /**
+     * Scans the entities for the one with the given unique id when the index misses it, which happens when its unique
+     * id changed by a mutation the registry didn't observe, and indexes it so that later lookups find it directly.
+     */
+    private fun findAndIndexByUniqueId(uniqueId: String): T? {
+        val entity = entitiesById.values.firstOrNull { it.uniqueId == uniqueId } ?: return null
+        reindex(entity)
+        return entity
+    }
+
+    override fun findByIndex(name: String, key: Any): Set<T> {
+        val index = requireNotNull(indexesByName[name]) { "No index named '$name' exists" }
+        // Entities mutated since they were indexed are left out until their mutation event updates the index
+        return index.find(key)
+            .filterTo(hashSetOf()) { index.keyOf(it) == key && entitiesById[it.id] === it }
+            .also { publisher.emitAsync(Read(it)) }
+    }
+
     override fun size() = entitiesById.size
 
     override val isEmpty: Boolean
@@ -186,4 +461,6 @@ abstract class RegistryBase<K, T : IdentifiableEntity<K>>(
     }
 
     override fun hashCode() = Objects.hash(entitiesById)
-}
\ No newline at end of file
+}
+
+private const val LOCK_STRIPES = 64
\ No newline at end of file
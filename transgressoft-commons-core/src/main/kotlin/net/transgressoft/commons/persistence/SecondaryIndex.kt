@@ -0,0 +1,126 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence
+
+import net.transgressoft.commons.entity.IdentifiableEntity
+import net.transgressoft.commons.event.PropertyChange
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Function
+
+/**
+ * Secondary index of the entities of a [RegistryBase] by a key extracted from them.
+ *
+ * A unique index maps each key to a single entity, the last one indexed if several share it,
+ * while a non-unique index maps each key to all the entities that have it. Entities whose
+ * extracted key is `null` are not indexed. The last key of each entity is tracked by its id,
+ * so the stale entry can be dropped when an entity is indexed again after being mutated.
+ *
+ * The index is always backed by concurrent maps, even in registries that aren't concurrent, because
+ * the mutations of reactive entities update it from the threads they are published on.
+ *
+ * @param K The type of entity identifier
+ * @param T The type of the indexed entities
+ * @property unique Whether each key maps to a single entity
+ * @param keyExtractor Function that extracts the index key from an entity
+ * @property properties Names of the properties the key is extracted from, or `null` if unknown
+ */
+internal class SecondaryIndex<K : Comparable<K>, T : IdentifiableEntity<K>>(
+    val unique: Boolean,
+    private val keyExtractor: Function<in T, *>,
+    val properties: Set<String>? = null
+) {
+    private val entitiesByKey = ConcurrentHashMap<Any, T>()
+    private val entityGroupsByKey = ConcurrentHashMap<Any, MutableMap<K, T>>()
+    private val keysById = ConcurrentHashMap<K, Any>()
+
+    fun keyOf(entity: T): Any? = keyExtractor.apply(entity)
+
+    /**
+     * Whether the key of an entity may have changed by the given property changes. No changes
+     * means that they are unknown, so the key may have changed as well as when the properties are unknown.
+     */
+    fun dependsOn(changes: List<PropertyChange>): Boolean =
+        properties == null || changes.isEmpty() || changes.any { it.property in properties }
+
+    /**
+     * Indexes the entity under its current key, removing the entry of its previous key if it changed.
+     */
+    fun update(entity: T) {
+        val key = keyOf(entity)
+        val previousKey = if (key == null) keysById.remove(entity.id) else keysById.put(entity.id, key)
+        if (previousKey != null && previousKey != key) {
+            removeEntry(previousKey, entity)
+        }
+        if (key != null) {
+            if (unique) {
+                entitiesByKey[key] = entity
+            } else {
+                entityGroupsByKey.computeIfAbsent(key) { ConcurrentHashMap() }[entity.id] = entity
+            }
+        }
+    }
+
+    fun remove(entity: T) {
+        keysById.remove(entity.id)?.let { removeEntry(it, entity) }
+    }
+
+    fun clear() {
+        entitiesByKey.clear()
+        entityGroupsByKey.clear()
+        keysById.clear()
+    }
+
+    /**
+     * Removes the entry of the given key only if it holds this very entity, used to evict stale entries found on lookups.
+     */
+    fun evict(key: Any, entity: T) {
+        if (unique) {
+            if (entitiesByKey[key] === entity) {
+                entitiesByKey.remove(key)
+            }
+        } else if (entityGroupsByKey[key]?.get(entity.id) === entity) {
+            removeEntry(key, entity)
+        }
+    }
+
+    /**
+     * Returns the entities indexed under the given key, which may include stale ones
+     * mutated since they were indexed that the caller is expected to verify.
+     */
+    fun find(key: Any): Collection<T> =
+        if (unique) {
+            entitiesByKey[key]?.let { listOf(it) } ?: emptyList()
+        } else {
+            entityGroupsByKey[key]?.values?.toList() ?: emptyList()
+        }
+
+    private fun removeEntry(key: Any, entity: T) {
+        if (unique) {
+            if (entitiesByKey[key]?.id == entity.id) {
+                entitiesByKey.remove(key)
+            }
+        } else {
+            entityGroupsByKey[key]?.let { group ->
+                group.remove(entity.id)
+                if (group.isEmpty()) {
+                    entityGroupsByKey.remove(key, group)
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,9 @@ import net.transgressoft.commons.event.StandardCrudEvent.Delete
 import net.transgressoft.commons.event.StandardCrudEvent.Update
 import mu.KotlinLogging
 import java.util.Objects
+import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Consumer
 
 /**
  * Base class for mutable entity repositories with reactive behavior.
@@ -38,7 +41,9 @@ import java.util.Objects
  * - Full CRUD operations with event publishing
  * - Bulk operations for adding/replacing/removing multiple entities
  * - Optimized entity replacement with change detection
+ * - Transactions that publish their changes as a single event per type, see [transaction]
  * - Detailed logging of repository operations
+ * - Optional thread-safe mode backed by a [ConcurrentHashMap], see [concurrent]
  *
  * Since this repository is volatile, all data is lost when the application terminates
  * or when the repository instance is garbage collected.
@@ -51,7 +56,8 @@ import java.util.Objects
  * @param K The type of entity identifier, must be [Comparable]
  * @param T The type of entity being stored, must implement [IdentifiableEntity]
  * @property name A descriptive name for this repository, used in logging
- * @property initialEntities Optional map of entities to initialize the repository with
+ * @property initialEntities Optional map of entities to initialize the repository with, which also backs
+ *   the repository. A [ConcurrentHashMap] makes the repository safe to be modified from several threads.
  */
 open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
     @JvmOverloads
@@ -66,7 +72,10 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
         }
 
         override fun add(entity: T): Boolean {
-            val previous = entitiesById.putIfAbsent(entity.id, entity)
+            val previous =
+                withEntityLock(entity.id) {
+                    entitiesById.putIfAbsent(entity.id, entity).also { if (it == null) onEntityAdded(entity) }
+                }
             if (previous == null) {
                 publisher.emitAsync(Create(entity))
                 log.debug { "Entity with id ${entity.id} added to repository: $entity" }
@@ -77,7 +86,7 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
         }
 
         override fun addOrReplace(entity: T): Boolean {
-            val oldValue = entitiesById.put(entity.id, entity)
+            val oldValue = putEntry(entity)
             if (oldValue == null) {
                 publisher.emitAsync(Create(entity))
                 log.debug { "Entity with id ${entity.id} added to repository: $entity" }
@@ -98,7 +107,7 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
             val entitiesBeforeUpdate = mutableListOf<T>()
 
             entities.forEach { entity ->
-                val oldValue = entitiesById.put(entity.id, entity)
+                val oldValue = putEntry(entity)
                 if (oldValue == null) {
                     added.add(entity)
                 } else if (oldValue != entity) {
@@ -120,8 +129,25 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
             return added.isNotEmpty() || updated.isNotEmpty()
         }
 
+        /**
+         * Stores the entity under its id, detaching the entity it replaces, if it's another instance,
+         * so that it doesn't remain in the indexes or on the mutation bus, nor keep its publisher open.
+         */
+        private fun putEntry(entity: T): T? =
+            withEntityLock(entity.id) {
+                entitiesById.put(entity.id, entity).also { oldValue ->
+                    if (oldValue != null && oldValue !== entity) onEntityRemoved(oldValue)
+                    onEntityAdded(entity)
+                }
+            }
+
+        private fun removeEntry(id: K, entity: T): Boolean =
+            withEntityLock(id) {
+                entitiesById.remove(id, entity).also { if (it) onEntityRemoved(entity) }
+            }
+
         override fun remove(entity: T): Boolean {
-            val removed = entitiesById.remove(entity.id, entity)
+            val removed = removeEntry(entity.id, entity)
             if (removed) {
                 publisher.emitAsync(Delete(entity))
                 log.debug { "Entity with id ${entity.id} was removed: $entity" }
@@ -133,7 +159,7 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
             val removed = mutableListOf<T>()
 
             entities.forEach { entity ->
-                if (entitiesById.remove(entity.id, entity)) {
+                if (removeEntry(entity.id, entity)) {
                     removed.add(entity)
                 }
             }
@@ -148,14 +174,122 @@ open class VolatileRepository<K : Comparable<K>, T : IdentifiableEntity<K>>
         }
 
         override fun clear() {
-            val allEntities = HashSet(entitiesById.values)
+            val allEntities =
+                if (isConcurrent) {
+                    // Removed one by one, so that entities added meanwhile are kept along with their index entries
+                    entitiesById.values.filterTo(HashSet()) { removeEntry(it.id, it) }
+                } else {
+                    HashSet(entitiesById.values).also {
+                        entitiesById.clear()
+                        onEntitiesCleared(it)
+                    }
+                }
             if (allEntities.isNotEmpty()) {
-                entitiesById.clear()
                 publisher.emitAsync(Delete(allEntities))
                 log.debug { "${allEntities.size} entities were removed resulting in empty repository" }
             }
         }
 
+        override fun transaction(changes: Consumer<in RepositoryTransaction<K, T>>): Boolean {
+            val transaction = BufferedTransaction()
+            changes.accept(transaction)
+            val changesById = transaction.changesById
+            return withEntityLocks(changesById.keys) { commit(changesById) }
+        }
+
+        /**
+         * Applies the changes buffered by a transaction, over any change made meanwhile to the same entities,
+         * and publishes them. Called holding the locks of all the changed entities, so that no other change to
+         * them, either by another transaction or a single operation, is interleaved with the commit. Readers
+         * don't take locks, so they may observe the commit in progress, as they do with [addOrReplaceAll] or
+         * [removeAll], but never the changes of a transaction that didn't commit.
+         */
+        private fun commit(changesById: Map<K, T?>): Boolean {
+            val added = mutableListOf<T>()
+            val updated = mutableListOf<T>()
+            val entitiesBeforeUpdate = mutableListOf<T>()
+            val removed = mutableListOf<T>()
+
+            changesById.forEach { (id, entity) ->
+                if (entity == null) {
+                    val current = entitiesById[id]
+                    if (current != null && removeEntry(id, current)) {
+                        removed.add(current)
+                    }
+                } else {
+                    val oldValue = putEntry(entity)
+                    if (oldValue == null) {
+                        added.add(entity)
+                    } else if (oldValue != entity) {
+                        updated.add(entity)
+                        entitiesBeforeUpdate.add(oldValue)
+                    }
+                }
+            }
+
+            if (added.isEmpty() && updated.isEmpty() && removed.isEmpty()) return false
+
+            onTransactionCommitted(added + updated, removed)
+            if (added.isNotEmpty()) {
+                publisher.emitAsync(Create(added))
+            }
+            if (updated.isNotEmpty()) {
+                publisher.emitAsync(Update(updated, entitiesBeforeUpdate))
+            }
+            if (removed.isNotEmpty()) {
+                publisher.emitAsync(Delete(removed))
+            }
+            log.debug { "Transaction committed with ${added.size} added, ${updated.size} replaced and ${removed.size} removed entities" }
+            return true
+        }
+
+        /**
+         * Called once a transaction is committed with the entities it added or replaced and the ones it removed,
+         * after they are applied and before their events are published.
+         */
+        protected open fun onTransactionCommitted(upserted: Collection<T>, removed: Collection<T>) {}
+
+        /**
+         * Buffers the changes of a transaction as the entity each changed id ends up with, or `null` if it is removed.
+         */
+        private inner class BufferedTransaction : RepositoryTransaction<K, T> {
+            val changesById = LinkedHashMap<K, T?>()
+
+            private fun current(id: K): T? = if (changesById.containsKey(id)) changesById[id] else entitiesById[id]
+
+            override fun add(entity: T): Boolean {
+                if (current(entity.id) != null) return false
+                changesById[entity.id] = entity
+                return true
+            }
+
+            override fun addOrReplace(entity: T): Boolean {
+                val previous = current(entity.id)
+                changesById[entity.id] = entity
+                return previous != entity
+            }
+
+            override fun remove(entity: T): Boolean {
+                if (current(entity.id) != entity) return false
+                changesById[entity.id] = null
+                return true
+            }
+
+            override fun findById(id: K): Optional<out T> = Optional.ofNullable(current(id))
+        }
+
+        companion object {
+            /**
+             * Creates a repository safe to be modified from several threads, backed by a [ConcurrentHashMap].
+             *
+             * @param name A descriptive name for the repository, used in logging
+             */
+            @JvmStatic
+            @JvmOverloads
+            fun <K : Comparable<K>, T : IdentifiableEntity<K>> concurrent(name: String = "Repository"): VolatileRepository<K, T> =
+                VolatileRepository(name, ConcurrentHashMap())
+        }
+
         override fun equals(other: Any?): Boolean {
             if (this === other) return true
             if (other == null || javaClass != other.javaClass) return false
@@ -20,29 +20,119 @@ package net.transgressoft.commons.persistence.json
 import net.transgressoft.commons.entity.ReactiveEntity
 import net.transgressoft.commons.event.CrudEvent.Type.CREATE
 import net.transgressoft.commons.event.CrudEvent.Type.UPDATE
-import net.transgressoft.commons.event.MutationEvent
+import net.transgressoft.commons.event.PropertyChange
 import net.transgressoft.commons.event.ReactiveScope
-import net.transgressoft.commons.event.TransEventSubscription
-import net.transgressoft.commons.persistence.Repository
 import net.transgressoft.commons.persistence.VolatileRepository
 import mu.KotlinLogging
 import java.io.File
 import java.util.Objects
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
-import kotlin.time.Duration.Companion.milliseconds
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.FlowPreview
-import kotlinx.coroutines.channels.BufferOverflow
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.flow.MutableSharedFlow
-import kotlinx.coroutines.flow.debounce
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.withContext
 import kotlinx.serialization.KSerializer
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.modules.SerializersModule
 
+/**
+ * Policy that decides when the pending changes of a [JsonFileRepository] are written to its file.
+ *
+ * Changes are written once no new change has arrived for [debounceMillis], bounded so that they are never
+ * delayed more than [maxLatencyMillis] under sustained changes, or as soon as [maxPendingChanges] accumulate.
+ * Regardless of the policy, [JsonFileRepository.flush] writes the pending changes immediately.
+ *
+ * @property debounceMillis Quiet period after the last change before writing. 0 writes as soon as possible.
+ * @property maxLatencyMillis Maximum time a change waits to be written since the first pending change.
+ * @property maxPendingChanges Number of pending changes that triggers a write without waiting.
+ * @property syncJournal Whether each write to the journal, if any, is forced to the storage device before it
+ *   completes, so that the changes written survive a crash of the system. Whole file writes are always forced.
+ */
+data class FlushPolicy(
+    val debounceMillis: Long = 300,
+    val maxLatencyMillis: Long = 5_000,
+    val maxPendingChanges: Int = Int.MAX_VALUE,
+    val syncJournal: Boolean = true
+) {
+    init {
+        require(debounceMillis >= 0) { "debounceMillis must be non-negative" }
+        require(maxLatencyMillis >= debounceMillis) { "maxLatencyMillis must not be lower than debounceMillis" }
+        require(maxPendingChanges > 0) { "maxPendingChanges must be positive" }
+    }
+
+    companion object {
+        /** Default policy, balancing file writes and the latency of the changes to be persisted */
+        val DEFAULT = FlushPolicy()
+
+        /**
+         * Policy that writes every change as soon as possible, favouring durability over I/O throughput.
+         */
+        val IMMEDIATE = FlushPolicy(debounceMillis = 0, maxLatencyMillis = 0)
+
+        /**
+         * Policy for repositories with high rates of changes, that groups them in fewer writes and leaves
+         * the writes to the journal to the operating system, so a crash of the system may lose the last ones.
+         */
+        val THROUGHPUT = FlushPolicy(debounceMillis = 1_000, maxLatencyMillis = 30_000, maxPendingChanges = 100_000, syncJournal = false)
+    }
+}
+
+/**
+ * Format in which a [JsonFileRepository] writes its entities to the file, using the same serializers for all of them.
+ *
+ * @property fileExtension Extension that the repository file must have
+ */
+enum class RepositoryFormat(val fileExtension: String) {
+    /** Indented JSON, readable and convenient for small files edited by hand */
+    PRETTY_JSON("json"),
+
+    /** JSON without whitespace, notably smaller and faster to write than [PRETTY_JSON] */
+    COMPACT_JSON("json"),
+
+    /**
+     * Binary [CBOR](https://cbor.io) encoding, the smallest and fastest to load. Only for serializers that
+     * don't depend on the JSON format, such as implementations of [TransEntityPolymorphicSerializer].
+     */
+    CBOR("cbor")
+}
+
+/**
+ * Configuration for the persistence behavior of a [JsonFileRepository].
+ *
+ * @property flushPolicy Policy that decides when pending changes are written to the file
+ * @property format Format of the repository file. The journal, if any, is always written as JSON lines
+ * @property journal Whether changes are appended as JSON lines to a journal file next to the JSON file,
+ *   named after it with a `.journal` suffix, instead of rewriting the whole file on every change. The journal
+ *   is replayed on load and compacted into the JSON file on load, on close, and once it grows past the threshold.
+ * @property journalCompactionThreshold Number of entity changes appended to the journal after which it is
+ *   compacted into the JSON file. Larger values write the whole repository less often but make loading slower.
+ * @property scopeGroup Name of the [ReactiveScope] group whose I/O scope writes the file, isolating the
+ *   repository from the ones in other groups. By default, files are written on [ReactiveScope.ioScope].
+ */
+data class JsonRepositoryConfig(
+    val flushPolicy: FlushPolicy = FlushPolicy.DEFAULT,
+    val format: RepositoryFormat = RepositoryFormat.PRETTY_JSON,
+    val journal: Boolean = false,
+    val journalCompactionThreshold: Int = 10_000,
+    val scopeGroup: String? = null
+) {
+    init {
+        require(journalCompactionThreshold > 0) { "journalCompactionThreshold must be positive" }
+    }
+
+    companion object {
+        /** Default configuration, rewriting the whole JSON file on every change */
+        val DEFAULT = JsonRepositoryConfig()
+
+        /**
+         * Configuration for large repositories, where the cost of each write
+         * should be proportional to the change rather than to the repository size.
+         */
+        fun withJournal(compactionThreshold: Int = 10_000) =
+            JsonRepositoryConfig(
+                journal = true,
+                journalCompactionThreshold = compactionThreshold
+            )
+    }
+}
+
 /**
  * Base class for repositories that store entities in a JSON file.
  *
@@ -51,205 +141,134 @@ import kotlinx.serialization.modules.SerializersModule
  * with file I/O capabilities, ensuring that repository operations are automatically persisted.
  *
  * Key features:
- * - Asynchronous JSON serialization using debouncing to optimize I/O operations
+ * - Asynchronous JSON serialization following a configurable [FlushPolicy] to optimize I/O operations
+ * - Explicit [flush] to write pending changes on demand
+ * - Pretty, compact JSON or binary CBOR file formats, see [RepositoryFormat]
+ * - Optional append-only journal of changes, see [JsonRepositoryConfig.journal]
+ * - Crash-safe writes to a temporary file that atomically replaces the JSON file
  * - Automatic persistence of all repository operations
- * - Thread-safe operations using ConcurrentHashMap by the upstream [Repository]
+ * - Thread-safe operations backed by a ConcurrentHashMap, which the file writes can also iterate safely
  * - Error handling with logging
  * - Subscription management for entity lifecycle
  *
  * @param K The type of entity identifier, must be [Comparable]
  * @param R The type of entity being stored, must implement [ReactiveEntity]
- * @param file The JSON file to store entities in
- * @param mapSerializer The serializer used to convert entities to/from JSON
+ * @param file The JSON file to store entities in, or the `.cbor` file when using [RepositoryFormat.CBOR]
+ * @param mapSerializer The serializer used to convert entities to/from the file format
  * @param repositorySerializersModule Optional module for configuring JSON serialization
+ * @param config Configuration of the persistence behavior
  */
 open class JsonFileRepository<K : Comparable<K>, R : ReactiveEntity<K, R>>
     @JvmOverloads
     constructor(
         file: File,
-        private val mapSerializer: KSerializer<Map<K, R>>,
-        private val repositorySerializersModule: SerializersModule = SerializersModule {}
-    ) : VolatileRepository<K, R>("JsonFileRepository-${file.name}"), JsonRepository<K, R> {
+        mapSerializer: KSerializer<Map<K, R>>,
+        repositorySerializersModule: SerializersModule = SerializersModule {},
+        config: JsonRepositoryConfig = JsonRepositoryConfig.DEFAULT
+    ) : VolatileRepository<K, R>("JsonFileRepository-${file.name}", ConcurrentHashMap()), JsonRepository<K, R> {
         private val log = KotlinLogging.logger(javaClass.name)
 
-        final override var jsonFile: File = file
-            set(value) {
-                require(value.exists().and(value.canWrite()).and(value.extension == "json").and(value.readText().isEmpty())) {
-                    "Provided jsonFile does not exist, is not writable, is not a json file, or is not empty"
-                }
-                field = value
-                serializationEventChannel.trySend(Unit)
-                log.info { "jsonFile set to $value" }
-            }
-
-        protected val json =
-            Json {
-                serializersModule = repositorySerializersModule
-                prettyPrint = true
-                explicitNulls = true
-                allowStructuredMapKeys = true
-            }
-
-        /**
-         * The coroutine scope used for file I/O operations. Defaults to a scope with
-         * limitedParallelism(1) on the IO dispatcher to ensure sequential file access and thread safety.
-         * For testing, provide a scope with a test dispatcher.
-         * @see [ReactiveScope]
-         */
-        private val ioScope: CoroutineScope = ReactiveScope.ioScope
+        private val format = config.format
 
         /**
-         * This coroutine scope is used to handle all emissions to the
-         * JSON serialization job for a fire and forget approach
+         * Writes the entities to the file, to which the repository reports every change of them.
          */
-        private val flowScope: CoroutineScope = ReactiveScope.flowScope
+        private val store = JsonFileStore(file, mapSerializer, repositorySerializersModule, config, entitiesById)
 
-        private val serializationEventChannel = Channel<Unit>(Channel.CONFLATED)
-
-        /**
-         * Shared flow used to trigger serialization of the repository state. Debounced to avoid
-         * excessive serialization operations when multiple changes occur in a short period.
-         */
-        private val serializationTrigger = MutableSharedFlow<Unit>(replay = 1, extraBufferCapacity = 1, onBufferOverflow = BufferOverflow.DROP_OLDEST)
+        final override var jsonFile: File
+            get() = store.file
+            set(value) {
+                require(value.exists().and(value.canWrite()).and(value.extension == format.fileExtension).and(value.length() == 0L)) {
+                    "Provided jsonFile does not exist, is not writable, is not a ${format.fileExtension} file, or is not empty"
+                }
+                store.relocate(value)
+                log.info { "jsonFile set to $value" }
+            }
 
-        private val serializationDelay = 300.milliseconds
+        protected val json: Json = store.json
 
         /**
-         * Subscriptions map for each entity in the repository are needed to unsubscribe
-         * from their changes once they are removed.
+         * Entity mutations must be persisted, so the repository subscribes to them for as long as the entities are stored.
          */
-        private val subscriptionsMap: MutableMap<K, TransEventSubscription<in R, MutationEvent.Type, MutationEvent<K, R>>> = ConcurrentHashMap()
+        override fun tracksMutations() = true
 
         init {
-            require(jsonFile.exists().and(jsonFile.canWrite()).and(jsonFile.extension == "json")) {
-                "Provided jsonFile does not exist, is not writable or is not a json file"
-            }
-
-            flowScope.launch {
-                for (event in serializationEventChannel) {
-                    try {
-                        serializationTrigger.emit(event)
-                    } catch (exception: Exception) {
-                        log.error(exception) { "Unexpected error during serialization" }
-                    }
-                }
-            }
-
             disableEvents(CREATE, UPDATE)
 
-            // Load entities from the JSON file on initialization and create subscriptions
-            decodeFromJson()?.let { loadedEntities ->
-                log.info { "${loadedEntities.size} objects deserialized from file $jsonFile" }
-
-                addOrReplaceAll(loadedEntities.values.toSet())
-
-                // Create subscriptions for loaded entities
-                flowScope.launch {
-                    runForAll { entity ->
-                        val subscription = entity.subscribe { serializationEventChannel.trySend(Unit) }
-                        subscriptionsMap[entity.id] = subscription
-                    }
-                }
-            }
+            // Entities read from the file are inserted directly, since loading them
+            // neither publishes events nor requires to persist them again
+            store.load()
+            entitiesById.values.forEach(::onEntityAdded)
 
             activateEvents(CREATE, UPDATE)
         }
 
-        @OptIn(FlowPreview::class)
-        private val serializationJob =
-            ioScope.launch {
-                serializationTrigger
-                    .debounce(serializationDelay)
-                    .collect {
-                        performSerialization()
-                    }
-            }
+        override suspend fun flush() = store.flush()
 
-        private suspend fun performSerialization() {
-            try {
-                val jsonString = json.encodeToString(mapSerializer, entitiesById)
+        override fun flushAsync(): CompletableFuture<Unit> = store.flushAsync()
 
-                // Limit serialization to one concurrent operation
-                withContext(ioScope.coroutineContext) {
-                    jsonFile.writeText(jsonString)
-                }
-                log.debug { "File updated: $jsonFile" }
-            } catch (exception: Exception) {
-                log.error(exception) { "Error serializing to file $jsonFile" }
+        override fun onEntityMutated(entity: R, changes: List<PropertyChange>) {
+            super.onEntityMutated(entity, changes)
+            if (contains(entity.id)) {
+                store.recordUpsert(entity)
             }
+            store.requestSerialization()
         }
 
-        private fun decodeFromJson(): Map<K, R>? =
-            if (jsonFile.readText().isNotEmpty()) {
-                json.decodeFromString(mapSerializer, jsonFile.readText())
-            } else null
-
         override fun close() {
-            runBlocking {
-                // Cancel the channel to prevent new events
-                serializationEventChannel.close()
-                // Ensure any pending serialization is performed
-                performSerialization()
-            }
-            serializationJob.cancel()
+            store.close()
+            super.close()
         }
 
         override fun add(entity: R) =
             super.add(entity).also { added ->
                 if (added) {
-                    serializationEventChannel.trySend(Unit)
-                    val subscription = entity.subscribe { serializationEventChannel.trySend(Unit) }
-                    subscriptionsMap[entity.id] = subscription
+                    store.recordUpsert(entity)
+                    store.requestSerialization()
                 }
             }
 
         override fun addOrReplace(entity: R) =
             super.addOrReplace(entity).also { added ->
                 if (added) {
-                    serializationEventChannel.trySend(Unit)
-                    val subscription = entity.subscribe { serializationEventChannel.trySend(Unit) }
-                    subscriptionsMap[entity.id] = subscription
+                    store.recordUpsert(entity)
+                    store.requestSerialization()
                 }
             }
 
         override fun addOrReplaceAll(entities: Set<R>) =
             super.addOrReplaceAll(entities).also { added ->
                 if (added) {
-                    serializationEventChannel.trySend(Unit)
-                    entities.forEach { entity ->
-                        val subscription = entity.subscribe { serializationEventChannel.trySend(Unit) }
-                        subscriptionsMap[entity.id] = subscription
-                    }
+                    entities.forEach(store::recordUpsert)
+                    store.requestSerialization()
                 }
             }
 
         override fun remove(entity: R) =
             super.remove(entity).also { removed ->
                 if (removed) {
-                    serializationEventChannel.trySend(Unit)
-                    subscriptionsMap[entity.id]?.cancel() ?: error("Repository should contain a subscription for $entity")
-                    subscriptionsMap.remove(entity.id)
+                    store.recordDelete(entity)
+                    store.requestSerialization()
                 }
             }
 
         override fun removeAll(entities: Collection<R>) =
             super.removeAll(entities).also { removed ->
                 if (removed) {
-                    serializationEventChannel.trySend(Unit)
-                    entities.forEach {
-                        subscriptionsMap[it.id]?.cancel() ?: error("Repository should contain a subscription for $it")
-                        subscriptionsMap.remove(it.id)
-                    }
+                    entities.filterNot { contains(it.id) }.forEach(store::recordDelete)
+                    store.requestSerialization()
                 }
             }
 
+        override fun onTransactionCommitted(upserted: Collection<R>, removed: Collection<R>) {
+            upserted.forEach(store::recordUpsert)
+            removed.forEach(store::recordDelete)
+            store.requestSerialization()
+        }
+
         override fun clear() {
             super.clear()
-            serializationEventChannel.trySend(Unit)
-            subscriptionsMap.forEach { (_, subscription) ->
-                subscription.cancel()
-            }
-            subscriptionsMap.clear()
+            store.requestSnapshot()
         }
 
         override fun hashCode() = Objects.hashCode(jsonFile)
@@ -260,4 +279,4 @@ open class JsonFileRepository<K : Comparable<K>, R : ReactiveEntity<K, R>>
             } else {
                 false
             }
-    }
\ No newline at end of file
+    }
@@ -0,0 +1,507 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence.json
+
+import net.transgressoft.commons.entity.ReactiveEntity
+import net.transgressoft.commons.event.ReactiveScope
+import mu.KotlinLogging
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.ContinuationInterceptor
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.future.future
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.builtins.MapSerializer
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.cbor.Cbor
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.json.DecodeSequenceMode
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.decodeFromStream
+import kotlinx.serialization.json.decodeToSequence
+import kotlinx.serialization.json.encodeToStream
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.modules.SerializersModule
+
+/**
+ * Persists the entities of a map to a file, the persistence of a [JsonFileRepository] or of each shard of a
+ * [ShardedJsonFileRepository], without holding any entity of its own. The owner of the map stores the entities,
+ * tracks their changes and reports them with [recordUpsert], [recordDelete] and [requestSerialization], and the
+ * store writes them following the [JsonRepositoryConfig], iterating the map, which must be safe to iterate while
+ * it's modified from other threads, such as a [ConcurrentHashMap].
+ *
+ * @param file The file to store the entities in
+ * @param mapSerializer The serializer used to convert the entities to/from the file format
+ * @param repositorySerializersModule Module for configuring JSON serialization
+ * @param config Configuration of the persistence behavior
+ * @param entities The map of the entities to persist, which [load] fills with the entities in the file
+ */
+internal class JsonFileStore<K : Comparable<K>, R : ReactiveEntity<K, R>>(
+    file: File,
+    private val mapSerializer: KSerializer<Map<K, R>>,
+    repositorySerializersModule: SerializersModule,
+    private val config: JsonRepositoryConfig,
+    private val entities: MutableMap<K, R>
+) {
+    private val log = KotlinLogging.logger(javaClass.name)
+
+    private val format = config.format
+
+    @Volatile
+    var file: File = file
+        private set
+
+    val json =
+        Json {
+            serializersModule = repositorySerializersModule
+            prettyPrint = format == RepositoryFormat.PRETTY_JSON
+            explicitNulls = true
+            allowStructuredMapKeys = true
+        }
+
+    /**
+     * Each change appended to the journal must fit in a single line.
+     */
+    private val journalJson = Json(json) { prettyPrint = false }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    private val cbor =
+        Cbor {
+            serializersModule = repositorySerializersModule
+        }
+
+    private val journalFile: File
+        get() = File(file.path + JOURNAL_SUFFIX)
+
+    private val snapshotTempFile: File
+        get() = File(file.path + SNAPSHOT_TEMP_SUFFIX)
+
+    /**
+     * Changes not yet appended to the journal by entity id, where only the last change of each entity matters.
+     */
+    private val pendingJournalChanges: MutableMap<K, JournalChange<R>> = ConcurrentHashMap()
+
+    @Volatile
+    private var journalChangesCount = 0
+
+    /**
+     * Whether the next serialization must write the whole map to the file, instead of
+     * appending the pending changes to the journal, for changes that are not tracked by entity.
+     */
+    @Volatile
+    private var snapshotRequired = false
+
+    /**
+     * The coroutine scope used for file I/O operations, the one of the [JsonRepositoryConfig.scopeGroup] if any.
+     * Defaults to a scope with limitedParallelism(1) on the IO dispatcher to ensure sequential file access and
+     * thread safety. For testing, provide a scope with a test dispatcher.
+     * @see [ReactiveScope]
+     */
+    private val ioScope: CoroutineScope = ReactiveScope.ioScopeOf(config.scopeGroup)
+
+    /**
+     * The dispatcher of the [ioScope], which writes run on without becoming children of the job of the scope,
+     * so that they are cancelled along with the caller that waits for them.
+     */
+    private val ioDispatcher: CoroutineContext = ioScope.coroutineContext[ContinuationInterceptor] ?: EmptyCoroutineContext
+
+    /**
+     * Signals the serialization job that there are pending changes. Conflated, since the
+     * job only needs to know whether changes happened, while [pendingChanges] counts them.
+     */
+    private val serializationEventChannel = Channel<Unit>(Channel.CONFLATED)
+
+    private val pendingChanges = AtomicInteger(0)
+
+    /**
+     * Ensures that writes triggered by the serialization job, [flush] and [close] do not overlap.
+     */
+    private val serializationMutex = Mutex()
+
+    private val flushPolicy = config.flushPolicy
+
+    init {
+        require(file.exists().and(file.canWrite()).and(file.extension == format.fileExtension)) {
+            "Provided jsonFile does not exist, is not writable or is not a ${format.fileExtension} file"
+        }
+    }
+
+    private val serializationJob =
+        ioScope.launch {
+            while (serializationEventChannel.receiveCatching().isSuccess) {
+                awaitFlushPolicy()
+                performSerialization()
+            }
+        }
+
+    /**
+     * Reads the entities in the file, and the changes in its journal if any, into the map.
+     */
+    fun load() {
+        if (config.journal) {
+            recoverInterruptedCompaction()
+        }
+        if (file.length() > 0L) {
+            val loaded = decodeFromFile()
+            log.info { "$loaded objects deserialized from file $file" }
+        }
+        if (config.journal && journalFile.exists()) {
+            replayJournal()
+            // Fold the replayed changes into the file so that the journal starts empty, which also
+            // drops a torn line at its end that the next appended change would otherwise be glued to
+            requestSnapshot()
+        }
+    }
+
+    /**
+     * Moves the persistence to the given file, writing the whole map to it.
+     */
+    fun relocate(newFile: File) {
+        file = newFile
+        requestSnapshot()
+    }
+
+    /**
+     * Waits after a change until no other change arrives during the debounce window, the maximum
+     * latency since that first change elapses, or the maximum number of pending changes is reached.
+     */
+    private suspend fun awaitFlushPolicy() {
+        withTimeoutOrNull(flushPolicy.maxLatencyMillis) {
+            while (pendingChanges.get() < flushPolicy.maxPendingChanges) {
+                val changed = withTimeoutOrNull(flushPolicy.debounceMillis) { serializationEventChannel.receiveCatching().isSuccess }
+                if (changed != true) break
+            }
+        }
+    }
+
+    fun requestSerialization() {
+        pendingChanges.incrementAndGet()
+        serializationEventChannel.trySend(Unit)
+    }
+
+    /**
+     * Requests to write the whole map, for changes that are not recorded by entity.
+     */
+    fun requestSnapshot() {
+        snapshotRequired = true
+        requestSerialization()
+    }
+
+    suspend fun flush() {
+        withContext(ioDispatcher) {
+            performSerialization()
+        }
+    }
+
+    fun flushAsync(): CompletableFuture<Unit> = ioScope.future { flush() }
+
+    private suspend fun performSerialization() =
+        serializationMutex.withLock {
+            if (pendingChanges.getAndSet(0) > 0 || snapshotRequired) {
+                serialize()
+            }
+        }
+
+    private suspend fun serialize() {
+        try {
+            if (config.journal && !snapshotRequired && journalChangesCount < config.journalCompactionThreshold) {
+                appendToJournal()
+            } else {
+                writeSnapshot()
+            }
+        } catch (exception: Exception) {
+            log.error(exception) { "Error serializing to file $file" }
+        }
+    }
+
+    private suspend fun writeSnapshot() {
+        // Changes from now on are appended to the journal after the snapshot, even if it includes them
+        pendingJournalChanges.clear()
+        snapshotRequired = false
+
+        try {
+            // Limit serialization to one concurrent operation
+            withContext(ioDispatcher) {
+                val tempFile = snapshotTempFile
+                val journal = if (config.journal) journalFile else null
+
+                // The journal must exist while the temporary file is written, see recoverInterruptedCompaction
+                journal?.createNewFile()
+                encodeToFileDurably(tempFile)
+                journal?.delete()
+                moveReplacing(tempFile, file)
+                journalChangesCount = 0
+            }
+        } catch (exception: Exception) {
+            // The snapshot includes every change, so the next serialization writes it again
+            // instead of appending to the journal changes on top of an outdated file
+            snapshotRequired = true
+            throw exception
+        }
+        log.debug { "File updated: $file" }
+    }
+
+    /**
+     * Encodes the entities into the given file, streaming them without building the whole content in memory
+     * when the format is JSON, and forces it to the storage device so that it is complete before it replaces the file.
+     */
+    @OptIn(ExperimentalSerializationApi::class)
+    private fun encodeToFileDurably(target: File) {
+        val options = arrayOf(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+        FileChannel.open(target.toPath(), *options).use { channel ->
+            val output = Channels.newOutputStream(channel).buffered()
+            when (format) {
+                RepositoryFormat.CBOR -> output.write(cbor.encodeToByteArray(mapSerializer, entities))
+                else -> json.encodeToStream(mapSerializer, entities, output)
+            }
+            output.flush()
+            channel.force(true)
+        }
+    }
+
+    /**
+     * Appends the given text to the file through a channel, forcing it to the storage device if the [flushPolicy]
+     * syncs the journal. Only the content is forced, which includes the size of the file needed to read it.
+     */
+    private fun appendDurably(target: File, text: String) {
+        val options = arrayOf(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        FileChannel.open(target.toPath(), *options).use { channel ->
+            val buffer = ByteBuffer.wrap(text.toByteArray())
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            if (flushPolicy.syncJournal) {
+                channel.force(false)
+            }
+        }
+    }
+
+    /**
+     * Moves the source file over the target one atomically, so that the target is never left partially
+     * written, falling back to a regular replacement on file systems that don't support atomic moves.
+     */
+    private fun moveReplacing(source: File, target: File) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (exception: AtomicMoveNotSupportedException) {
+            log.debug(exception) { "Atomic move not supported, replacing $target" }
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    private suspend fun appendToJournal() {
+        val upserts = mutableMapOf<K, R>()
+        val deletes = mutableMapOf<K, R>()
+        pendingJournalChanges.keys.forEach { id ->
+            pendingJournalChanges.remove(id)?.let { change ->
+                if (change.deleted) deletes[id] = change.entity else upserts[id] = change.entity
+            }
+        }
+        if (upserts.isEmpty() && deletes.isEmpty()) return
+
+        val line =
+            buildJsonObject {
+                put(JOURNAL_UPSERTS, journalJson.encodeToJsonElement(mapSerializer, upserts))
+                put(JOURNAL_DELETES, journalJson.encodeToJsonElement(mapSerializer, deletes))
+            }
+
+        withContext(ioDispatcher) {
+            appendDurably(journalFile, "$line\n")
+        }
+        journalChangesCount += upserts.size + deletes.size
+        log.debug { "${upserts.size + deletes.size} changes appended to journal $journalFile" }
+    }
+
+    fun recordUpsert(entity: R) {
+        if (config.journal) {
+            pendingJournalChanges[entity.id] = JournalChange(entity, false)
+        }
+    }
+
+    fun recordDelete(entity: R) {
+        if (config.journal) {
+            pendingJournalChanges[entity.id] = JournalChange(entity, true)
+        }
+    }
+
+    /**
+     * Decodes the entities from the file into the map, returning how many were decoded. When the format is JSON,
+     * they are streamed and inserted one at a time, so that neither the content of the file nor a whole map of
+     * the decoded entities is held in memory besides the map. CBOR can only be decoded from a byte array as a whole.
+     */
+    @OptIn(ExperimentalSerializationApi::class)
+    private fun decodeFromFile(): Int =
+        if (format == RepositoryFormat.CBOR) {
+            cbor.decodeFromByteArray(mapSerializer, file.readBytes()).also(entities::putAll).size
+        } else {
+            file.inputStream().buffered().use { input ->
+                // Maps with structured keys are encoded as an array of alternating keys and values
+                input.mark(1)
+                var first = input.read()
+                while (first != -1 && Character.isWhitespace(first)) {
+                    input.mark(1)
+                    first = input.read()
+                }
+                input.reset()
+                if (first == '['.code) {
+                    json.decodeToSequence(input, JsonElement.serializer(), DecodeSequenceMode.ARRAY_WRAPPED)
+                        .chunked(2)
+                        .sumOf { (key, value) -> insertEntry(JsonArray(listOf(key, value))) }
+                } else {
+                    json.decodeFromStream(EntryInsertingDeserializer(), input)
+                }
+            }
+        }
+
+    /**
+     * Decodes a single entry of the map, in the form it has in the file, and inserts it into [entities].
+     */
+    private fun insertEntry(entry: JsonElement): Int {
+        json.decodeFromJsonElement(mapSerializer, entry).forEach { (id, entity) -> entities[id] = entity }
+        return 1
+    }
+
+    /**
+     * Reads a JSON object of entities entry by entry, inserting each one into [entities] as soon as it is read, instead
+     * of building the whole map first. Each entry is decoded by the [mapSerializer] as a map with that single entry.
+     */
+    private inner class EntryInsertingDeserializer : DeserializationStrategy<Int> {
+        private val entrySerializer = MapSerializer(String.serializer(), JsonElement.serializer())
+
+        override val descriptor = entrySerializer.descriptor
+
+        override fun deserialize(decoder: Decoder): Int {
+            var count = 0
+            val composite = decoder.beginStructure(descriptor)
+            while (true) {
+                val keyIndex = composite.decodeElementIndex(descriptor)
+                if (keyIndex == CompositeDecoder.DECODE_DONE) break
+                val key = composite.decodeStringElement(descriptor, keyIndex)
+                val valueIndex = composite.decodeElementIndex(descriptor)
+                val value = composite.decodeSerializableElement(descriptor, valueIndex, JsonElement.serializer())
+                count += insertEntry(JsonObject(mapOf(key to value)))
+            }
+            composite.endStructure(descriptor)
+            return count
+        }
+    }
+
+    /**
+     * Completes a compaction interrupted after the journal was deleted, or discards its temporary
+     * file if the journal still exists, because in that case it may not have been fully written.
+     */
+    private fun recoverInterruptedCompaction() {
+        val tempFile = snapshotTempFile
+        if (tempFile.exists()) {
+            if (journalFile.exists()) {
+                tempFile.delete()
+            } else {
+                moveReplacing(tempFile, file)
+                log.warn { "Recovered interrupted compaction of $file" }
+            }
+        }
+    }
+
+    /**
+     * Applies the changes in the journal to the loaded entities, stopping at the first line that can't be
+     * parsed, which can only be the last one if the application stopped while it was being appended.
+     */
+    private fun replayJournal() {
+        val journal = journalFile
+
+        var replayed = 0
+        journal.useLines { lines ->
+            for (line in lines) {
+                if (line.isBlank()) continue
+                val change =
+                    try {
+                        journalJson.parseToJsonElement(line).jsonObject
+                    } catch (exception: SerializationException) {
+                        log.warn(exception) { "Ignoring incomplete change at the end of journal $journal" }
+                        break
+                    }
+                change[JOURNAL_DELETES]?.let { deletes ->
+                    journalJson.decodeFromJsonElement(mapSerializer, deletes).keys.forEach { id ->
+                        entities.remove(id)
+                        replayed++
+                    }
+                }
+                change[JOURNAL_UPSERTS]?.let { upserts ->
+                    journalJson.decodeFromJsonElement(mapSerializer, upserts).values.forEach { entity ->
+                        entities[entity.id] = entity
+                        replayed++
+                    }
+                }
+            }
+        }
+        log.info { "$replayed changes replayed from journal $journal" }
+    }
+
+    /**
+     * Writes the pending changes, compacting the journal if any, and stops writing the changes requested afterward.
+     * A store without changes since its file was last written leaves it untouched.
+     */
+    fun close() {
+        runBlocking {
+            // Cancel the channel to prevent new events
+            serializationEventChannel.close()
+            // Ensure any pending serialization is performed, compacting the journal if it has changes
+            if (pendingChanges.get() > 0 || journalChangesCount > 0) {
+                snapshotRequired = true
+            }
+            performSerialization()
+        }
+        serializationJob.cancel()
+    }
+}
+
+private const val JOURNAL_SUFFIX = ".journal"
+private const val SNAPSHOT_TEMP_SUFFIX = ".tmp"
+private const val JOURNAL_UPSERTS = "upserts"
+private const val JOURNAL_DELETES = "deletes"
+
+/**
+ * Last change of an entity pending to be appended to the journal of a [JsonFileStore].
+ */
+private class JournalChange<R>(val entity: R, val deleted: Boolean)
@@ -0,0 +1,206 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence.json
+
+import net.transgressoft.commons.entity.ReactiveEntity
+import net.transgressoft.commons.event.PropertyChange
+import net.transgressoft.commons.event.ReactiveScope
+import net.transgressoft.commons.persistence.VolatileRepository
+import mu.KotlinLogging
+import java.io.Closeable
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.future.future
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.modules.SerializersModule
+
+/**
+ * Repository that partitions its entities across a fixed number of files in a directory, by the hash of their id.
+ *
+ * The entities are held once, in a map partitioned in the same way, and each partition is persisted to its
+ * own file, so that a change only rewrites the shard of the changed entity: each shard tracks the pending
+ * changes of its entities from additions, removals and entity mutations, and the ones without changes are
+ * never written. This makes the cost of each write proportional to the size of a shard instead of the whole
+ * dataset. The shards are loaded on initialization in the I/O scope of the [JsonRepositoryConfig.scopeGroup],
+ * in parallel up to its parallelism, and only the shards with changes are written when the repository is closed.
+ *
+ * Shard files are named `shard-<index>` with the extension of the [JsonRepositoryConfig.format], and the
+ * same number of shards must be used every time the directory is loaded, since it decides the shard of each
+ * entity. For the same reason, the `hashCode` of the ids must be stable between executions.
+ *
+ * @param K The type of entity identifier, must be [Comparable]
+ * @param R The type of entity being stored, must implement [ReactiveEntity]
+ * @property directory The directory where the shard files are stored
+ * @param shardCount The number of files the entities are partitioned into
+ * @param mapSerializer The serializer used to convert the entities of each shard to/from the file format
+ * @param repositorySerializersModule Optional module for configuring JSON serialization
+ * @param config Configuration of the persistence behavior of each shard
+ */
+open class ShardedJsonFileRepository<K : Comparable<K>, R : ReactiveEntity<K, R>>
+    private constructor(
+        val directory: File,
+        private val shardedEntities: ShardedMap<K, R>,
+        mapSerializer: KSerializer<Map<K, R>>,
+        repositorySerializersModule: SerializersModule,
+        config: JsonRepositoryConfig
+    ) : VolatileRepository<K, R>("ShardedJsonFileRepository-${directory.name}", shardedEntities), Closeable {
+
+        @JvmOverloads
+        constructor(
+            directory: File,
+            shardCount: Int,
+            mapSerializer: KSerializer<Map<K, R>>,
+            repositorySerializersModule: SerializersModule = SerializersModule {},
+            config: JsonRepositoryConfig = JsonRepositoryConfig.DEFAULT
+        ) : this(directory, ShardedMap(shardCount), mapSerializer, repositorySerializersModule, config)
+
+        private val log = KotlinLogging.logger(javaClass.name)
+
+        private val ioScope: CoroutineScope = ReactiveScope.ioScopeOf(config.scopeGroup)
+
+        /**
+         * Persistence of each partition of the entities, which only holds their pending changes.
+         */
+        private val shards: List<JsonFileStore<K, R>>
+
+        /**
+         * Entity mutations must be persisted, so the repository subscribes to them for as long as the entities are stored.
+         */
+        override fun tracksMutations() = true
+
+        init {
+            require(directory.isDirectory.and(directory.canWrite())) {
+                "Provided directory does not exist, is not a directory or is not writable"
+            }
+            val shardCount = shardedEntities.shards.size
+            val extension = config.format.fileExtension
+            require(directory.listFiles().orEmpty().none { shardIndex(it, extension)?.let { index -> index >= shardCount } == true }) {
+                "Provided directory contains shards of a repository with more than $shardCount shards"
+            }
+
+            shards =
+                shardedEntities.shards.mapIndexed { index, shardEntities ->
+                    val shardFile = File(directory, "$SHARD_PREFIX$index.$extension").apply { createNewFile() }
+                    JsonFileStore(shardFile, mapSerializer, repositorySerializersModule, config, shardEntities)
+                }
+
+            // Shards are loaded in the I/O scope of the repository, as many at a time as its parallelism allows.
+            // Entities read from the files are inserted directly, since loading them neither publishes events nor
+            // requires to persist them again
+            runBlocking {
+                shards.map { shard -> ioScope.async { shard.load() } }.awaitAll()
+            }
+            entitiesById.values.forEach(::onEntityAdded)
+            log.info { "${size()} objects loaded from $shardCount shards in $directory" }
+        }
+
+        private fun shardIndex(file: File, extension: String): Int? =
+            if (file.extension == extension && file.name.startsWith(SHARD_PREFIX)) {
+                file.nameWithoutExtension.removePrefix(SHARD_PREFIX).toIntOrNull()
+            } else null
+
+        private fun shardOf(id: K): JsonFileStore<K, R> = shards[shardedEntities.shardIndexOf(id)]
+
+        /**
+         * Writes the pending changes of every shard immediately, and suspends until they are written.
+         */
+        suspend fun flush() = shards.forEach { it.flush() }
+
+        /**
+         * Writes the pending changes of every shard immediately, as [flush] does, for callers outside coroutines.
+         *
+         * @return A future completed once the pending changes are written
+         */
+        fun flushAsync(): CompletableFuture<Unit> = ioScope.future { flush() }
+
+        private fun recordUpserts(entities: Collection<R>) =
+            entities.groupBy { shardOf(it.id) }.forEach { (shard, shardEntities) ->
+                shardEntities.forEach(shard::recordUpsert)
+                shard.requestSerialization()
+            }
+
+        private fun recordDeletes(entities: Collection<R>) =
+            entities.groupBy { shardOf(it.id) }.forEach { (shard, shardEntities) ->
+                shardEntities.forEach(shard::recordDelete)
+                shard.requestSerialization()
+            }
+
+        override fun onEntityMutated(entity: R, changes: List<PropertyChange>) {
+            super.onEntityMutated(entity, changes)
+            val shard = shardOf(entity.id)
+            if (contains(entity.id)) {
+                shard.recordUpsert(entity)
+            }
+            shard.requestSerialization()
+        }
+
+        override fun add(entity: R) =
+            super.add(entity).also { added ->
+                if (added) recordUpserts(listOf(entity))
+            }
+
+        override fun addOrReplace(entity: R) =
+            super.addOrReplace(entity).also { added ->
+                if (added) recordUpserts(listOf(entity))
+            }
+
+        override fun addOrReplaceAll(entities: Set<R>) =
+            super.addOrReplaceAll(entities).also { added ->
+                if (added) recordUpserts(entities)
+            }
+
+        override fun remove(entity: R) =
+            super.remove(entity).also { removed ->
+                if (removed) recordDeletes(listOf(entity))
+            }
+
+        override fun removeAll(entities: Collection<R>) =
+            super.removeAll(entities).also { removed ->
+                if (removed) recordDeletes(entities.filterNot { contains(it.id) })
+            }
+
+        override fun onTransactionCommitted(upserted: Collection<R>, removed: Collection<R>) {
+            recordUpserts(upserted)
+            recordDeletes(removed)
+        }
+
+        override fun clear() {
+            super.clear()
+            shards.forEach { it.requestSnapshot() }
+        }
+
+        override fun close() {
+            shards.forEach { it.close() }
+            super.close()
+        }
+
+        override fun hashCode() = directory.hashCode()
+
+        override fun equals(other: Any?) =
+            if (other is ShardedJsonFileRepository<*, *>) {
+                directory == other.directory
+            } else {
+                false
+            }
+    }
+
+private const val SHARD_PREFIX = "shard-"
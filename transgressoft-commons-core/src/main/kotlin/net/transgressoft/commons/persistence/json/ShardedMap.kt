@@ -0,0 +1,102 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.persistence.json
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Concurrent map partitioned into a fixed number of [shards] by the hash of the keys, so that each
+ * shard can be read on its own while the map is used as a whole. Each entry is held only by its shard.
+ *
+ * @param shardCount The number of maps the entries are partitioned into
+ */
+internal class ShardedMap<K : Any, V : Any>(shardCount: Int) : AbstractMutableMap<K, V>(), ConcurrentMap<K, V> {
+
+    init {
+        require(shardCount > 0) { "shardCount must be positive" }
+    }
+
+    val shards: List<ConcurrentHashMap<K, V>> = List(shardCount) { ConcurrentHashMap() }
+
+    fun shardIndexOf(key: K): Int = Math.floorMod(key.hashCode(), shards.size)
+
+    private fun shardOf(key: K) = shards[shardIndexOf(key)]
+
+    override val size: Int
+        get() = shards.sumOf { it.size }
+
+    override fun isEmpty() = shards.all { it.isEmpty() }
+
+    override fun containsKey(key: K) = shardOf(key).containsKey(key)
+
+    override fun containsValue(value: V) = shards.any { it.containsValue(value) }
+
+    override fun get(key: K): V? = shardOf(key)[key]
+
+    override fun put(key: K, value: V): V? = shardOf(key).put(key, value)
+
+    override fun putIfAbsent(key: K, value: V): V? = shardOf(key).putIfAbsent(key, value)
+
+    override fun remove(key: K): V? = shardOf(key).remove(key)
+
+    override fun remove(key: K, value: V): Boolean = shardOf(key).remove(key, value)
+
+    override fun replace(key: K, value: V): V? = shardOf(key).replace(key, value)
+
+    override fun replace(key: K, oldValue: V, newValue: V): Boolean = shardOf(key).replace(key, oldValue, newValue)
+
+    override fun clear() = shards.forEach { it.clear() }
+
+    override val entries: MutableSet<MutableMap.MutableEntry<K, V>> =
+        object : AbstractMutableSet<MutableMap.MutableEntry<K, V>>() {
+            override val size: Int
+                get() = this@ShardedMap.size
+
+            override fun add(element: MutableMap.MutableEntry<K, V>): Boolean = put(element.key, element.value) != element.value
+
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<K, V>> = ShardsIterator()
+        }
+
+    /**
+     * Iterates the entries of each shard in turn, weakly consistent as the iterators of the shards are.
+     */
+    private inner class ShardsIterator : MutableIterator<MutableMap.MutableEntry<K, V>> {
+        private val remainingShards = shards.iterator()
+        private var current = remainingShards.next().entries.iterator()
+        private var lastReturnedFrom: MutableIterator<MutableMap.MutableEntry<K, V>>? = null
+
+        override fun hasNext(): Boolean {
+            while (!current.hasNext() && remainingShards.hasNext()) {
+                current = remainingShards.next().entries.iterator()
+            }
+            return current.hasNext()
+        }
+
+        override fun next(): MutableMap.MutableEntry<K, V> {
+            if (!hasNext()) throw NoSuchElementException()
+            lastReturnedFrom = current
+            return current.next()
+        }
+
+        override fun remove() {
+            checkNotNull(lastReturnedFrom) { "next has not been called" }.remove()
+            lastReturnedFrom = null
+        }
+    }
+}
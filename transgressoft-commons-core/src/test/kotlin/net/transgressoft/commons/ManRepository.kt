@@ -28,6 +28,10 @@ data class Man(
 ) : Manly, ReactiveEntityBase<Int, Manly>("$id") {
     override val uniqueId: String = "$id-$name-$money"
 
+    // name is set directly
+    override val versionedMutations
+        get() = false
+
     override fun clone(): Man = copy()
 }
 
@@ -6,6 +6,7 @@ import net.transgressoft.commons.event.EventType
 import net.transgressoft.commons.event.TransEvent
 import net.transgressoft.commons.persistence.json.JsonFileRepository
 import net.transgressoft.commons.persistence.json.JsonRepository
+import net.transgressoft.commons.persistence.json.JsonRepositoryConfig
 import net.transgressoft.commons.persistence.json.TransEntityPolymorphicSerializer
 import io.kotest.property.Arb
 import io.kotest.property.arbitrary.arbitrary
@@ -53,6 +54,10 @@ data class Person(
     override val morals: Boolean
 ): Personly, ReactiveEntityBase<Int, Personly>() {
 
+    // money is set directly
+    override val versionedMutations
+        get() = false
+
     @Transient
     override var name: String? = initialName
         get() = initialName
@@ -102,7 +107,7 @@ abstract class HumanGenericJsonFileRepositoryBase<H: Human<H>>(private val repos
         else false
 }
 
-class PersonJsonFileRepository(file: File): HumanGenericJsonFileRepositoryBase<Personly>(
+class PersonJsonFileRepository(file: File, config: JsonRepositoryConfig = JsonRepositoryConfig.DEFAULT): HumanGenericJsonFileRepositoryBase<Personly>(
     JsonFileRepository(
         file,
         MapSerializer(Int.serializer(), PersonlySerializer()),
@@ -110,7 +115,8 @@ class PersonJsonFileRepository(file: File): HumanGenericJsonFileRepositoryBase<P
             polymorphic(Human::class) {
                 subclass(Person::class, Person.serializer())
             }
-        }
+        },
+        config
     )
 ) {
 
@@ -0,0 +1,220 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.entity
+
+import net.transgressoft.commons.event.MutationEvent
+import net.transgressoft.commons.event.PropertyChange
+import net.transgressoft.commons.event.ReactiveScope
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import java.util.Objects
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+
+@ExperimentalCoroutinesApi
+class ReactiveEntityBaseTest : StringSpec({
+    val testDispatcher = UnconfinedTestDispatcher()
+    val testScope = CoroutineScope(testDispatcher)
+
+    beforeSpec {
+        ReactiveScope.flowScope = testScope
+        ReactiveScope.ioScope = testScope
+    }
+
+    afterSpec {
+        ReactiveScope.resetDefaultIoScope()
+        ReactiveScope.resetDefaultFlowScope()
+    }
+
+    "Entities are not cloned on mutations while nobody tracks them" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.CLONE, cloneCounter)
+
+        entity.value = "untracked"
+        entity.replaceItems(listOf("a", "b"))
+        cloneCounter.get() shouldBe 0
+        entity.items shouldBe listOf("a", "b")
+
+        val receivedEvents = mutableListOf<MutationEvent<String, SnapshotTestEntity>>()
+        val subscription = entity.subscribe { receivedEvents.add(it) }
+        entity.value = "tracked"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounter.get() shouldBe 1
+        receivedEvents.single().oldEntity.value shouldBe "untracked"
+        receivedEvents.single().changes shouldBe listOf(PropertyChange("value", "untracked", "tracked"))
+
+        subscription.cancel()
+    }
+
+    "Entities recording property changes publish them without cloning" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.PROPERTY_CHANGES, cloneCounter)
+        val receivedEvents = mutableListOf<MutationEvent<String, SnapshotTestEntity>>()
+        val subscription = entity.subscribe { receivedEvents.add(it) }
+
+        entity.value = "first"
+        entity.value = "second"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounter.get() shouldBe 0
+        receivedEvents.map { it.changes.single() } shouldBe
+            listOf(PropertyChange("value", "initial", "first"), PropertyChange("value", "first", "second"))
+        receivedEvents.forEach { event ->
+            event.newEntity shouldBe entity
+            event.oldEntityOrNull shouldBe null
+            shouldThrow<UnsupportedOperationException> { event.oldEntity }
+        }
+
+        // Mutations with unknown changes still clone the entity
+        entity.replaceItems(listOf("a"))
+        testDispatcher.scheduler.advanceUntilIdle()
+        cloneCounter.get() shouldBe 1
+        receivedEvents.last().oldEntity.items shouldBe emptyList()
+
+        subscription.cancel()
+    }
+
+    "Batched mutations publish a single event with their coalesced changes" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.PROPERTY_CHANGES, cloneCounter)
+        val receivedEvents = mutableListOf<MutationEvent<String, SnapshotTestEntity>>()
+        val subscription = entity.subscribe { receivedEvents.add(it) }
+
+        entity.batchMutate {
+            entity.value = "first"
+            entity.value = "second"
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounter.get() shouldBe 0
+        receivedEvents.single().changes shouldBe listOf(PropertyChange("value", "initial", "second"))
+
+        // Changes that are reverted within the batch publish nothing
+        entity.batchMutate {
+            entity.value = "third"
+            entity.value = "second"
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+        receivedEvents.size shouldBe 1
+
+        // The mutations applied before a failing one are still published
+        shouldThrow<IllegalStateException> {
+            entity.batchMutate {
+                entity.value = "fourth"
+                error("Failed mutation")
+            }
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+        receivedEvents.size shouldBe 2
+        receivedEvents.last().changes shouldBe listOf(PropertyChange("value", "second", "fourth"))
+
+        subscription.cancel()
+    }
+
+    "Batched mutations clone the entity once and publish no changes if some are unknown" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.CLONE, cloneCounter)
+        val receivedEvents = mutableListOf<MutationEvent<String, SnapshotTestEntity>>()
+        val subscription = entity.subscribe { receivedEvents.add(it) }
+
+        entity.batchMutate {
+            entity.value = "first"
+            entity.replaceItems(listOf("a"))
+            entity.value = "second"
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounter.get() shouldBe 1
+        receivedEvents.single().changes shouldBe emptyList()
+        receivedEvents.single().oldEntity.value shouldBe "initial"
+        receivedEvents.single().newEntity.items shouldBe listOf("a")
+
+        subscription.cancel()
+    }
+
+    "Batched mutations of entities recording property changes clone the entity before mutations with unknown changes" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.PROPERTY_CHANGES, cloneCounter)
+        val receivedEvents = mutableListOf<MutationEvent<String, SnapshotTestEntity>>()
+        val subscription = entity.subscribe { receivedEvents.add(it) }
+
+        entity.batchMutate {
+            entity.value = "first"
+            entity.replaceItems(listOf("a"))
+            entity.value = "second"
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounter.get() shouldBe 1
+        receivedEvents.size shouldBe 2
+        receivedEvents[0].changes shouldBe listOf(PropertyChange("value", "initial", "first"))
+        receivedEvents[0].oldEntityOrNull shouldBe null
+        receivedEvents[1].changes shouldBe emptyList()
+        receivedEvents[1].oldEntity.value shouldBe "first"
+        receivedEvents[1].oldEntity.items shouldBe emptyList()
+        receivedEvents[1].newEntity.items shouldBe listOf("a")
+
+        subscription.cancel()
+    }
+})
+
+/**
+ * Test entity that counts its clones, capturing its state before mutations as set by the given [MutationSnapshot].
+ */
+class SnapshotTestEntity(
+    override val id: String,
+    override val mutationSnapshot: MutationSnapshot,
+    private val cloneCounter: AtomicInteger
+) : ReactiveEntityBase<String, SnapshotTestEntity>() {
+
+    override val uniqueId: String
+        get() = id
+
+    var value: String = "initial"
+        set(newValue) {
+            mutateAndPublish("value", newValue, field) { field = it }
+        }
+
+    var items: List<String> = emptyList()
+        private set
+
+    fun replaceItems(newItems: List<String>) = mutateAndPublish { items = newItems }
+
+    override fun clone(): SnapshotTestEntity {
+        cloneCounter.incrementAndGet()
+        return SnapshotTestEntity(id, mutationSnapshot, AtomicInteger()).also {
+            it.value = value
+            it.replaceItems(items)
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (javaClass != other?.javaClass) return false
+        other as SnapshotTestEntity
+        return id == other.id && value == other.value && items == other.items
+    }
+
+    override fun hashCode() = Objects.hash(id, value, items)
+
+    override fun toString(): String = "SnapshotTestEntity(id=$id, value=$value, items=$items)"
+}
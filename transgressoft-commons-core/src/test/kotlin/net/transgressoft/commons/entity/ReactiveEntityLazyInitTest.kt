@@ -21,11 +21,13 @@ import net.transgressoft.commons.event.FlowEventPublisher
 import net.transgressoft.commons.event.MutationEvent
 import net.transgressoft.commons.event.ReactiveScope
 import net.transgressoft.commons.event.TransEventPublisher
+import net.transgressoft.commons.persistence.VolatileRepository
 import io.kotest.core.spec.style.StringSpec
 import io.kotest.matchers.shouldBe
 import java.util.concurrent.atomic.AtomicInteger
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.UnconfinedTestDispatcher
 
 @ExperimentalCoroutinesApi
@@ -180,6 +182,90 @@ class ReactiveEntityLazyInitTest : StringSpec({
         subscription.cancel()
     }
 
+    "Publisher is released when the entity is removed from a repository and nobody else is subscribed" {
+        val publisherCreationCounter = AtomicInteger(0)
+        val entity = LazyTestEntity("removed", publisherCreationCounter)
+        val observedEntity = LazyTestEntity("observed", AtomicInteger(0))
+        val repository =
+            VolatileRepository<String, LazyTestEntity>("LazyTestRepository").apply {
+                // Indexes subscribe to the mutations of the entities
+                createIndex("value") { it.value }
+                addOrReplaceAll(setOf(entity, observedEntity))
+            }
+        val receivedEvents = mutableListOf<MutationEvent<String, LazyTestEntity>>()
+        val subscription = observedEntity.subscribe { receivedEvents.add(it) }
+        entity.subscribe { }.cancel()
+        publisherCreationCounter.get() shouldBe 1
+
+        repository.remove(entity) shouldBe true
+        repository.remove(observedEntity) shouldBe true
+
+        // Mutations of the released entity are not published, and a new publisher is created on the next subscription
+        entity.value = "after-removal"
+        publisherCreationCounter.get() shouldBe 1
+        val newSubscription = entity.subscribe { }
+        publisherCreationCounter.get() shouldBe 2
+
+        // The entity with another subscriber keeps its publisher
+        observedEntity.value = "after-removal"
+        testDispatcher.scheduler.advanceUntilIdle()
+        receivedEvents.size shouldBe 1
+
+        subscription.cancel()
+        newSubscription.cancel()
+    }
+
+    "Publisher is released when the entity is replaced in a repository by another instance" {
+        val publisherCreationCounter = AtomicInteger(0)
+        val entity = LazyTestEntity("replaced", publisherCreationCounter).apply { value = "original" }
+        val replacement = LazyTestEntity("replaced", AtomicInteger(0)).apply { value = "replacement" }
+        val repository =
+            VolatileRepository<String, LazyTestEntity>("LazyTestRepository").apply {
+                createIndex("value") { it.value }
+                add(entity)
+            }
+        entity.subscribe { }.cancel()
+        publisherCreationCounter.get() shouldBe 1
+
+        repository.addOrReplace(replacement) shouldBe true
+
+        // The replaced entity is detached, its mutations are neither published nor indexed,
+        // and a new publisher is created on the next subscription
+        entity.value = "after-replacement"
+        testDispatcher.scheduler.advanceUntilIdle()
+        publisherCreationCounter.get() shouldBe 1
+        entity.subscribe { }.cancel()
+        publisherCreationCounter.get() shouldBe 2
+        repository.findByIndex("value", "original") shouldBe emptySet()
+        repository.findByIndex("value", "after-replacement") shouldBe emptySet()
+        repository.findByIndex("value", "replacement") shouldBe setOf(replacement)
+
+        // The replacement is tracked instead
+        replacement.value = "updated"
+        testDispatcher.scheduler.advanceUntilIdle()
+        repository.findByIndex("value", "updated") shouldBe setOf(replacement)
+
+        repository.close()
+    }
+
+    "Publisher is not released while its changes flow is collected" {
+        val publisherCreationCounter = AtomicInteger(0)
+        val entity = LazyTestEntity("collected", publisherCreationCounter)
+        val repository = VolatileRepository<String, LazyTestEntity>("LazyTestRepository").apply { add(entity) }
+        val collectedValues = mutableListOf<String>()
+        val collector = testScope.launch { entity.changes.collect { collectedValues.add(it.newEntity.value) } }
+
+        repository.remove(entity) shouldBe true
+        entity.value = "after-removal"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        publisherCreationCounter.get() shouldBe 1
+        collectedValues shouldBe listOf("after-removal")
+
+        collector.cancel()
+        repository.close()
+    }
+
     "Lazy initialization is thread-safe" {
         val publisherCreationCounter = AtomicInteger(0)
         val entity = LazyTestEntity("thread-safe", publisherCreationCounter)
@@ -274,4 +360,4 @@ class CustomPublisherEntity(
     }
 
     override fun toString(): String = "CustomPublisherEntity(id=$id, value=$value)"
-}
\ No newline at end of file
+}
@@ -26,12 +26,16 @@ import net.transgressoft.commons.event.StandardCrudEvent.Delete
 import net.transgressoft.commons.event.StandardCrudEvent.Update
 import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.ints.shouldBeLessThan
 import io.kotest.matchers.maps.shouldContainExactly
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.string.shouldContain
 import io.kotest.matchers.types.shouldBeInstanceOf
 import java.util.UUID
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Flow
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.Consumer
 import kotlin.time.Duration.Companion.milliseconds
@@ -52,6 +56,11 @@ class FlowEventPublisherTest : StringSpec({
         ReactiveScope.ioScope = testScope
     }
 
+    afterEach {
+        ReactiveScope.flowScope = testScope
+        ReactiveScope.ioScope = testScope
+    }
+
     afterSpec {
         ReactiveScope.resetDefaultIoScope()
         ReactiveScope.resetDefaultFlowScope()
@@ -326,6 +335,55 @@ class FlowEventPublisherTest : StringSpec({
         deleteSubscription.cancel()
     }
 
+    "FlowEventPublisher only wakes type-specific subscribers with events of their types" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
+        publisher.activateEvents(CREATE, UPDATE, DELETE)
+        val updateEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val createAndDeleteEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+
+        val updateSubscriptions = List(3) { publisher.subscribe(DeliveryMode.Sequential, UPDATE) { updateEvents.add(it) } }
+        val createAndDeleteSubscription = publisher.subscribe(DeliveryMode.Sequential, CREATE, DELETE) { createAndDeleteEvents.add(it) }
+
+        // Type-specific subscribers don't collect the flow of all events
+        publisher.changes.subscriptionCount.value shouldBe 0
+
+        val entity = TestEntity("entity")
+        val updatedEntity = TestEntity("entity").apply { name = "Updated" }
+        publisher.emitAsync(Create(entity))
+        publisher.emitAsync(Update(updatedEntity, entity))
+        publisher.emitAsync(Delete(updatedEntity))
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        updateEvents.map { it.type } shouldBe List(3) { UPDATE }
+        createAndDeleteEvents.map { it.type } shouldBe listOf(CREATE, DELETE)
+
+        updateSubscriptions.forEach { it.cancel() }
+        createAndDeleteSubscription.cancel()
+    }
+
+    "FlowEventPublisher publishes events of non comparable types identified by their code" {
+        class CodedType(override val code: Int) : EventType
+        class CodedEvent(override val type: CodedType) : TransEvent<CodedType>
+
+        val publisher = FlowEventPublisher<CodedType, CodedEvent>("TestPublisher")
+        val indexedType = CodedType(7)
+        val largeCodeType = CodedType(1_000_000)
+        val negativeCodeType = CodedType(-3)
+        publisher.activateEvents(indexedType, largeCodeType, negativeCodeType)
+        publisher.disableEvents(negativeCodeType)
+        val receivedCodes = mutableListOf<Int>()
+        val subscription = publisher.subscribe(DeliveryMode.Sequential) { receivedCodes.add(it.type.code) }
+
+        listOf(indexedType, CodedType(8), largeCodeType, negativeCodeType, CodedType(7)).forEach { publisher.emitAsync(CodedEvent(it)) }
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        receivedCodes shouldBe listOf(7, 1_000_000, 7)
+
+        subscription.cancel()
+    }
+
     "ReactiveEntity changes Flow can be collected by Kotlin Flow operators" {
         val entity = TestEntity(UUID.randomUUID().toString())
         testScope.launch {
@@ -484,6 +542,241 @@ class FlowEventPublisherTest : StringSpec({
         subscription.cancel()
     }
 
+    "FlowEventPublisher delivers events emitted together in batches" {
+        val publisher =
+            FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("BatchedPublisher", PublisherConfig(maxBatchSize = 4)).apply {
+                activateEvents(CREATE)
+            }
+        val receivedBatches = mutableListOf<List<CrudEvent<String, TestEntity>>>()
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val batchedSubscription = publisher.subscribeBatched { receivedBatches.add(it) }
+        val subscription = publisher.subscribe { receivedEvents.add(it) }
+
+        val entities = List(10) { i -> TestEntity("entity-$i") }
+        // Events of disabled types are left out of the batches
+        publisher.emitAllAsync(entities.map { Create(it) } + Delete(entities[0]))
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        receivedBatches.map { it.size } shouldBe listOf(4, 4, 2)
+        receivedBatches.flatten().map { it.entities.values.first() } shouldBe entities
+        receivedEvents.map { it.entities.values.first() } shouldBe entities
+
+        batchedSubscription.cancel()
+        subscription.cancel()
+    }
+
+    "Bounded channel applies backpressure to producers that emit suspending" {
+        val publisher =
+            FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>(
+                "BoundedPublisher",
+                PublisherConfig(extraBufferCapacity = 0, channelCapacity = 1)
+            ).apply {
+                activateEvents(CREATE)
+            }
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val subscription =
+            publisher.subscribeBatched { batch ->
+                // Simulate slow subscriber
+                delay(10.milliseconds)
+                receivedEvents.addAll(batch)
+            }
+
+        val producer =
+            testScope.launch {
+                repeat(10) { i -> publisher.emit(Create(TestEntity("entity-$i"))) }
+            }
+
+        testDispatcher.scheduler.advanceTimeBy(15)
+        producer.isCompleted shouldBe false
+
+        testDispatcher.scheduler.advanceUntilIdle()
+        producer.isCompleted shouldBe true
+        receivedEvents.map { it.entities.values.first().id } shouldBe List(10) { i -> "entity-$i" }
+
+        subscription.cancel()
+    }
+
+    "Sequential delivery processes every event without cancelling slow handlers" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
+        publisher.activateEvents(CREATE, DELETE)
+        val startedHandlers = AtomicInteger()
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val latestEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+
+        val subscription =
+            publisher.subscribe(DeliveryMode.Sequential, CREATE) { event ->
+                startedHandlers.incrementAndGet()
+                delay(5.milliseconds)
+                receivedEvents.add(event)
+            }
+        val latestSubscription =
+            publisher.subscribe(DeliveryMode.Latest) { event ->
+                delay(5.milliseconds)
+                latestEvents.add(event)
+            }
+
+        repeat(10) { i -> publisher.emitAsync(Create(TestEntity("entity-$i"))) }
+        publisher.emitAsync(Delete(TestEntity("entity-0")))
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        startedHandlers.get() shouldBe 10
+        receivedEvents.map { it.entities.values.first().id } shouldBe List(10) { i -> "entity-$i" }
+        // The handlers of the latest delivery are cancelled by the following events
+        latestEvents.size shouldBe 1
+
+        subscription.cancel()
+        latestSubscription.cancel()
+    }
+
+    "Buffered delivery processes every event with several handlers at a time" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
+        publisher.activateEvents(CREATE)
+        val runningHandlers = AtomicInteger()
+        val maxRunningHandlers = AtomicInteger()
+        val receivedIds = mutableSetOf<String>()
+
+        val subscription =
+            publisher.subscribe(DeliveryMode.Buffered(capacity = 16, parallelism = 4)) { event ->
+                maxRunningHandlers.accumulateAndGet(runningHandlers.incrementAndGet(), ::maxOf)
+                delay(5.milliseconds)
+                receivedIds.add(event.entities.values.first().id)
+                runningHandlers.decrementAndGet()
+            }
+
+        repeat(20) { i -> publisher.emitAsync(Create(TestEntity("entity-$i"))) }
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        receivedIds shouldBe List(20) { i -> "entity-$i" }.toSet()
+        maxRunningHandlers.get() shouldBe 4
+
+        subscription.cancel()
+    }
+
+    "Conflated delivery skips the events received while the handler is busy but the latest" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
+        publisher.activateEvents(CREATE)
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+
+        val subscription =
+            publisher.subscribe(DeliveryMode.Conflated) { event ->
+                delay(5.milliseconds)
+                receivedEvents.add(event)
+            }
+
+        repeat(10) { i -> publisher.emitAsync(Create(TestEntity("entity-$i"))) }
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        receivedEvents.last().entities.values.first().id shouldBe "entity-9"
+        receivedEvents.size shouldBeLessThan 10
+
+        subscription.cancel()
+    }
+
+    "Synchronous dispatch invokes non-suspending subscribers on the emitting thread" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("SynchronousPublisher", PublisherConfig.SYNCHRONOUS)
+        publisher.activateEvents(CREATE)
+        val emittingThread = Thread.currentThread()
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val subscription =
+            publisher.subscribe(
+                Consumer { event ->
+                    Thread.currentThread() shouldBe emittingThread
+                    receivedEvents.add(event)
+                }
+            )
+
+        publisher.emitAsync(Create(TestEntity("entity-1")))
+        publisher.emitAllAsync(listOf(Create(TestEntity("entity-2")), Create(TestEntity("entity-3"))))
+
+        // Received without running any coroutine
+        receivedEvents.map { it.entities.values.first().id } shouldBe listOf("entity-1", "entity-2", "entity-3")
+
+        subscription.cancel()
+        publisher.emitAsync(Create(TestEntity("entity-4")))
+
+        receivedEvents.size shouldBe 3
+    }
+
+    "Typed subscriptions release their flow once cancelled" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("SynchronousPublisher", PublisherConfig.SYNCHRONOUS)
+        publisher.activateEvents(CREATE, DELETE)
+        val cancelledEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val subscription = publisher.subscribe(CREATE) { cancelledEvents.add(it) }
+
+        publisher.emitAsync(Create(TestEntity("entity-1")))
+        testDispatcher.scheduler.advanceUntilIdle()
+        subscription.cancel()
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        publisher.hasSubscribers shouldBe false
+
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val newSubscription = publisher.subscribe(CREATE) { receivedEvents.add(it) }
+        publisher.emitAsync(Create(TestEntity("entity-2")))
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cancelledEvents.map { it.entities.values.first().id } shouldBe listOf("entity-1")
+        receivedEvents.map { it.entities.values.first().id } shouldBe listOf("entity-2")
+
+        newSubscription.cancel()
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        publisher.hasSubscribers shouldBe false
+    }
+
+    "FlowEventPublisher delivers events on virtual threads when the JVM supports them" {
+        if (!ReactiveScope.virtualThreadsSupported) {
+            shouldThrow<UnsupportedOperationException> { ReactiveScope.useVirtualThreads() }
+        } else {
+            // The publisher takes the virtual threads scope on creation, the test scope is restored after the test
+            ReactiveScope.useVirtualThreads()
+            val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("VirtualThreadsPublisher")
+            publisher.activateEvents(CREATE)
+            val received = CountDownLatch(1)
+            val handledOnVirtualThread = AtomicBoolean()
+            val subscription =
+                publisher.subscribe { _ ->
+                    handledOnVirtualThread.set(Thread::class.java.getMethod("isVirtual").invoke(Thread.currentThread()) as Boolean)
+                    received.countDown()
+                }
+
+            publisher.emitAsync(Create(TestEntity("entity")))
+
+            received.await(5, TimeUnit.SECONDS) shouldBe true
+            handledOnVirtualThread.get() shouldBe true
+
+            subscription.cancel()
+            publisher.close()
+        }
+    }
+
+    "Closed publisher cancels its subscriptions and discards new events" {
+        val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
+        publisher.activateEvents(CREATE)
+        val receivedEvents = mutableListOf<CrudEvent<String, TestEntity>>()
+        val subscription = publisher.subscribe(DeliveryMode.Sequential) { receivedEvents.add(it) }
+        publisher.subscribe(CREATE) { receivedEvents.add(it) }
+        publisher.hasSubscribers shouldBe true
+
+        subscription.cancel()
+        publisher.hasSubscribers shouldBe true
+
+        publisher.close()
+        publisher.hasSubscribers shouldBe false
+
+        publisher.emitAsync(Create(TestEntity("entity")))
+        publisher.emit(Create(TestEntity("entity")))
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        receivedEvents.size shouldBe 0
+        // Closing again has no effect
+        publisher.close()
+    }
+
     "Late subscriber receives no historical events (no replay)" {
         val publisher = FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("TestPublisher")
         publisher.activateEvents(CREATE)
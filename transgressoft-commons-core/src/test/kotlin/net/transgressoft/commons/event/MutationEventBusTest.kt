@@ -0,0 +1,117 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.entity.LazyTestEntity
+import net.transgressoft.commons.persistence.VolatileRepository
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+
+@ExperimentalCoroutinesApi
+class MutationEventBusTest : StringSpec({
+    val testDispatcher = UnconfinedTestDispatcher()
+    val testScope = CoroutineScope(testDispatcher)
+
+    beforeSpec {
+        ReactiveScope.flowScope = testScope
+        ReactiveScope.ioScope = testScope
+    }
+
+    afterSpec {
+        ReactiveScope.resetDefaultIoScope()
+        ReactiveScope.resetDefaultFlowScope()
+    }
+
+    "MutationEventBus delivers the mutations of a single entity to its subscribers" {
+        val bus = MutationEventBus<String>("TestBus", stripeCount = 2)
+        val entities = List(4) { LazyTestEntity("entity-$it") }
+        val attachments = entities.map { bus.attach(it) }
+        val allMutations = mutableListOf<String>()
+        val entityMutations = mutableListOf<String>()
+        val allSubscription = bus.subscribe { allMutations.add(it.newEntity.id) }
+        val entitySubscription = bus.subscribeTo("entity-1") { entityMutations.add((it.newEntity as LazyTestEntity).value) }
+
+        entities.forEach { it.value = "first" }
+        entities[1].value = "second"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        allMutations.size shouldBe 5
+        entityMutations shouldBe listOf("first", "second")
+
+        entitySubscription.cancel()
+        attachments.forEach { it.cancel() }
+        entities[1].value = "third"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        allMutations.size shouldBe 5
+        entityMutations shouldBe listOf("first", "second")
+
+        allSubscription.cancel()
+        bus.close()
+    }
+
+    "MutationEventBus only dispatches to subscribers of single entities while there are any" {
+        val bus = MutationEventBus<String>("TestBus", stripeCount = 2)
+        val entity = LazyTestEntity("entity")
+        val attachment = bus.attach(entity)
+        val entityMutations = mutableListOf<String>()
+
+        entity.value = "unobserved"
+        bus.isDispatchingToEntities shouldBe false
+
+        val firstSubscription = bus.subscribeTo("entity") { entityMutations.add("first") }
+        val secondSubscription = bus.subscribeTo("entity") { entityMutations.add("second") }
+        bus.isDispatchingToEntities shouldBe true
+
+        entity.value = "observed"
+        testDispatcher.scheduler.advanceUntilIdle()
+        entityMutations shouldBe listOf("first", "second")
+
+        firstSubscription.cancel()
+        bus.isDispatchingToEntities shouldBe true
+        secondSubscription.cancel()
+        bus.isDispatchingToEntities shouldBe false
+
+        entity.value = "unobserved again"
+        testDispatcher.scheduler.advanceUntilIdle()
+        entityMutations shouldBe listOf("first", "second")
+
+        attachment.cancel()
+        bus.close()
+    }
+
+    "Repositories without subscribers of single entities start no collectors on their bus" {
+        val entities = List(10) { LazyTestEntity("entity-$it") }
+        val repository =
+            VolatileRepository<String, LazyTestEntity>("NoCollectorsRepository").apply {
+                createIndex("value") { it.value }
+                addOrReplaceAll(entities.toSet())
+            }
+
+        entities.forEach { it.value = "mutated" }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        repository.findByIndex("value", "mutated") shouldBe entities.toSet()
+        repository.isDispatchingToEntitySubscribers shouldBe false
+
+        repository.close()
+    }
+})
@@ -0,0 +1,128 @@
+/******************************************************************************
+ *     Copyright (C) 2025  Octavio Calleya Garcia                             *
+ *                                                                            *
+ *     This program is free software: you can redistribute it and/or modify   *
+ *     it under the terms of the GNU General Public License as published by   *
+ *     the Free Software Foundation, either version 3 of the License, or      *
+ *     (at your option) any later version.                                    *
+ *                                                                            *
+ *     This program is distributed in the hope that it will be useful,        *
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *     GNU General Public License for more details.                           *
+ *                                                                            *
+ *     You should have received a copy of the GNU General Public License      *
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>. *
+ ******************************************************************************/
+
+package net.transgressoft.commons.event
+
+import net.transgressoft.commons.event.CrudEvent.Type.CREATE
+import net.transgressoft.commons.event.StandardCrudEvent.Create
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+
+@ExperimentalCoroutinesApi
+class ReactiveScopeTest : StringSpec({
+    val testScope = CoroutineScope(UnconfinedTestDispatcher())
+    val property = "net.transgressoft.commons.testParallelism"
+
+    afterEach {
+        System.clearProperty(property)
+        ReactiveScope.resetDefaultFlowScope()
+        ReactiveScope.resetDefaultIoScope()
+    }
+
+    "ReactiveScope reads the parallelism from the system property" {
+        ReactiveScope.parallelismProperty(property, 3) shouldBe 3
+
+        System.setProperty(property, "8")
+        ReactiveScope.parallelismProperty(property, 3) shouldBe 8
+    }
+
+    "ReactiveScope falls back to the default parallelism when the system property is not a positive integer" {
+        listOf("eight", "0", "-2", "").forEach {
+            System.setProperty(property, it)
+            ReactiveScope.parallelismProperty(property, 3) shouldBe 3
+        }
+    }
+
+    "ReactiveScope replaces the default scopes on configure but keeps the ones set by the user" {
+        val flowParallelism = ReactiveScope.flowParallelism
+        val ioParallelism = ReactiveScope.ioParallelism
+        ReactiveScope.resetDefaultFlowScope()
+        val previousFlowScope = ReactiveScope.flowScope
+        ReactiveScope.ioScope = testScope
+
+        try {
+            ReactiveScope.configure(flowParallelism = flowParallelism + 1, ioParallelism = ioParallelism + 1)
+
+            ReactiveScope.flowParallelism shouldBe flowParallelism + 1
+            ReactiveScope.ioParallelism shouldBe ioParallelism + 1
+            ReactiveScope.flowScope shouldNotBe previousFlowScope
+            ReactiveScope.ioScope shouldBe testScope
+
+            val configuredFlowScope = ReactiveScope.flowScope
+            ReactiveScope.configure(flowParallelism = flowParallelism + 1)
+            ReactiveScope.flowScope shouldBe configuredFlowScope
+        } finally {
+            ReactiveScope.configure(flowParallelism, ioParallelism)
+        }
+
+        shouldThrow<IllegalArgumentException> { ReactiveScope.configure(flowParallelism = 0) }
+        shouldThrow<IllegalArgumentException> { ReactiveScope.configure(ioParallelism = -1) }
+    }
+
+    "ReactiveScope provides isolated scopes for each scope group" {
+        ReactiveScope.flowScopeOf(null) shouldBe ReactiveScope.flowScope
+        ReactiveScope.ioScopeOf(null) shouldBe ReactiveScope.ioScope
+
+        ReactiveScope.configureGroup("caches", flowParallelism = 2)
+        val cachesScope = ReactiveScope.flowScopeOf("caches")
+        ReactiveScope.flowScopeOf("caches") shouldBe cachesScope
+        ReactiveScope.flowScopeOf("persistence") shouldNotBe cachesScope
+        ReactiveScope.ioScopeOf("caches") shouldNotBe ReactiveScope.ioScope
+
+        shouldThrow<IllegalArgumentException> { ReactiveScope.configureGroup("caches", flowParallelism = 0) }
+        shouldThrow<IllegalArgumentException> { ReactiveScope.configureGroup("caches", flowParallelism = 1, ioParallelism = 0) }
+    }
+
+    "Publishers in a scope group deliver events while the publishers of another group are blocked" {
+        ReactiveScope.configureGroup("blocked", flowParallelism = 1)
+        ReactiveScope.configureGroup("responsive", flowParallelism = 1)
+        val blockedPublisher =
+            FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("BlockedPublisher", PublisherConfig(scopeGroup = "blocked"))
+        val responsivePublisher =
+            FlowEventPublisher<CrudEvent.Type, CrudEvent<String, TestEntity>>("ResponsivePublisher", PublisherConfig(scopeGroup = "responsive"))
+        blockedPublisher.activateEvents(CREATE)
+        responsivePublisher.activateEvents(CREATE)
+
+        val blocking = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val received = CountDownLatch(1)
+        blockedPublisher.subscribe { _ ->
+            blocking.countDown()
+            release.await(5, TimeUnit.SECONDS)
+        }
+        responsivePublisher.subscribe { _ -> received.countDown() }
+
+        try {
+            blockedPublisher.emitAsync(Create(TestEntity("blocked")))
+            blocking.await(5, TimeUnit.SECONDS) shouldBe true
+
+            responsivePublisher.emitAsync(Create(TestEntity("responsive")))
+            received.await(5, TimeUnit.SECONDS) shouldBe true
+        } finally {
+            release.countDown()
+            blockedPublisher.close()
+            responsivePublisher.close()
+        }
+    }
+})
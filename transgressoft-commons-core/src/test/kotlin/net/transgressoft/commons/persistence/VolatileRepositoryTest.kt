@@ -2,6 +2,9 @@ package net.transgressoft.commons.persistence
 
 import net.transgressoft.commons.Person
 import net.transgressoft.commons.arbitraryPerson
+import net.transgressoft.commons.entity.LazyTestEntity
+import net.transgressoft.commons.entity.MutationSnapshot
+import net.transgressoft.commons.entity.SnapshotTestEntity
 import net.transgressoft.commons.entity.toIds
 import net.transgressoft.commons.event.CrudEvent
 import net.transgressoft.commons.event.CrudEvent.Type.CREATE
@@ -13,11 +16,16 @@ import net.transgressoft.commons.event.ReactiveScope
 import net.transgressoft.commons.event.TransEventSubscriberBase
 import io.kotest.assertions.assertSoftly
 import io.kotest.core.spec.style.StringSpec
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.collections.shouldContain
 import io.kotest.matchers.collections.shouldContainAll
 import io.kotest.matchers.collections.shouldContainOnly
+import io.kotest.matchers.optional.shouldBeEmpty
 import io.kotest.matchers.optional.shouldBePresent
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.shouldNotBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
 import io.kotest.property.Arb
 import io.kotest.property.arbitrary.next
 import io.kotest.property.arbitrary.set
@@ -25,9 +33,14 @@ import io.kotest.property.checkAll
 import java.util.Optional
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
+import kotlin.random.Random
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.withContext
 
 @ExperimentalCoroutinesApi
 internal class VolatileRepositoryTest : StringSpec({
@@ -219,6 +232,98 @@ internal class VolatileRepositoryTest : StringSpec({
         subscriber.deletedEventEntities.get() shouldBe 3
     }
 
+    "Repository transactions publish a single event per type on commit" {
+        val person = arbitraryPerson().next()
+        val person2 = arbitraryPerson().next()
+        val person3 = arbitraryPerson().next()
+        val person4 = arbitraryPerson().next()
+        repository.addOrReplaceAll(setOf(person, person2))
+        testDispatcher.scheduler.advanceUntilIdle()
+        val receivedEvents = mutableListOf<CrudEvent<Int, Person>>()
+        repository.subscribe { receivedEvents.add(it) }
+
+        val entityModified = person.copy(initialName = "Octavio")
+        repository.transaction { transaction ->
+            transaction.add(person3) shouldBe true
+            transaction.add(person4) shouldBe true
+            transaction.remove(person4) shouldBe true
+            transaction.addOrReplace(entityModified) shouldBe true
+            transaction.remove(person2) shouldBe true
+            transaction.contains(person2.id) shouldBe false
+
+            // Changes are not applied until the transaction commits
+            repository.contains(person3.id) shouldBe false
+            repository.contains(person2.id) shouldBe true
+        } shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        repository.search { true } shouldContainOnly setOf(entityModified, person3)
+        receivedEvents.map { it.type } shouldContainOnly setOf(CREATE, UPDATE, DELETE)
+        receivedEvents.size shouldBe 3
+        receivedEvents.first { it.isCreate() }.entities.values shouldContainOnly setOf(person3)
+        receivedEvents.first { it.isUpdate() }.oldEntities.values shouldContainOnly setOf(person)
+        receivedEvents.first { it.isDelete() }.entities.values shouldContainOnly setOf(person2)
+    }
+
+    "Repository transactions discard their changes when they fail" {
+        val person = arbitraryPerson().next()
+        repository.add(person)
+
+        shouldThrow<IllegalStateException> {
+            repository.transaction { transaction ->
+                transaction.add(arbitraryPerson().next())
+                transaction.remove(person)
+                error("Failed transaction")
+            }
+        }
+
+        repository.search { true } shouldContainOnly setOf(person)
+        repository.transaction { } shouldBe false
+    }
+
+    "Concurrent repository transactions are not interleaved with other changes to their entities" {
+        val concurrentRepository = VolatileRepository.concurrent<Int, Person>("ConcurrentTransactionRepository")
+        concurrentRepository.createIndex("money") { it.money }
+        val ids = (0 until 20).toList()
+
+        withContext(Dispatchers.Default) {
+            (1..8).map { worker ->
+                launch {
+                    repeat(500) { iteration ->
+                        val money = worker * 1_000L + iteration
+                        if (worker % 2 == 0) {
+                            // Every transaction writes all the entities with the same money
+                            concurrentRepository.transaction { transaction ->
+                                ids.forEach { transaction.addOrReplace(Person(it, "name-$it", money, true)) }
+                            }
+                        } else {
+                            // While single operations write some of them with a money of their own
+                            concurrentRepository.addOrReplaceAll(ids.shuffled().take(3).mapTo(hashSetOf()) { Person(it, "name-$it", money, true) })
+                        }
+                    }
+                }
+            }.joinAll()
+            // Writes all the entities once more with transactions alone, which must leave them all with the same money
+            (1..4).map { worker ->
+                launch {
+                    repeat(100) { iteration ->
+                        val money = 100_000L + worker * 1_000L + iteration
+                        concurrentRepository.transaction { transaction ->
+                            ids.reversed().forEach { transaction.addOrReplace(Person(it, "name-$it", money, true)) }
+                        }
+                    }
+                }
+            }.joinAll()
+        }
+
+        val entities = concurrentRepository.search { true }
+        entities.size shouldBe ids.size
+        val money = entities.first().money!!
+        entities.forEach { it.money shouldBe money }
+        concurrentRepository.findByIndex("money", money) shouldContainAll entities
+        concurrentRepository.findByIndex("money", money).size shouldBe ids.size
+    }
+
     "Repository disableEvents method prevents events from being published" {
         val person = arbitraryPerson().next()
 
@@ -366,6 +471,215 @@ internal class VolatileRepositoryTest : StringSpec({
         updateSubscription.cancel()
     }
 
+    "Repository finds entities by unique id after they are mutated, replaced or removed" {
+        val person = arbitraryPerson().next()
+        repository.add(person) shouldBe true
+        val firstUniqueId = person.uniqueId
+        repository.findByUniqueId(firstUniqueId) shouldBePresent { it shouldBe person }
+
+        repository.runForSingle(person.id) { it.money = it.money?.plus(1) } shouldBe true
+        repository.findByUniqueId(firstUniqueId).shouldBeEmpty()
+        repository.findByUniqueId(person.uniqueId) shouldBePresent { it shouldBe person }
+
+        // Mutated outside the repository
+        val secondUniqueId = person.uniqueId
+        person.name = "Ken"
+        repository.findByUniqueId(secondUniqueId).shouldBeEmpty()
+        repository.findByUniqueId(person.uniqueId) shouldBePresent { it shouldBe person }
+
+        // Mutated without publishing it, so the index misses it until it is found by a scan
+        val thirdUniqueId = person.uniqueId
+        person.money = person.money?.plus(1)
+        repository.findByUniqueId(thirdUniqueId).shouldBeEmpty()
+        repository.findByUniqueId(person.uniqueId) shouldBePresent { it shouldBe person }
+
+        val replacement = person.copy(initialName = "Octavio")
+        repository.addOrReplace(replacement) shouldBe true
+        repository.findByUniqueId(person.uniqueId).shouldBeEmpty()
+        repository.findByUniqueId(replacement.uniqueId) shouldBePresent { it shouldBe replacement }
+
+        repository.remove(replacement) shouldBe true
+        repository.findByUniqueId(replacement.uniqueId).shouldBeEmpty()
+
+        val people = Arb.set(arbitraryPerson(), 3..3).next()
+        repository.addOrReplaceAll(people) shouldBe true
+        people.forEach { repository.findByUniqueId(it.uniqueId) shouldBePresent { found -> found shouldBe it } }
+        repository.clear()
+        people.forEach { repository.findByUniqueId(it.uniqueId).shouldBeEmpty() }
+    }
+
+    "Repository finds entities by secondary indexes kept up to date with their changes" {
+        val ken = arbitraryPerson(1).next().copy(initialName = "Ken")
+        val bob = arbitraryPerson(2).next().copy(initialName = "Ken")
+        val ann = arbitraryPerson(3).next().copy(initialName = "Ann", money = 10)
+        repository.addOrReplaceAll(setOf(ken, bob, ann)) shouldBe true
+
+        repository.createIndex("name") { it.name }
+        repository.createUniqueIndex("money") { it.money }
+        shouldThrow<IllegalArgumentException> { repository.createIndex("name") { it.morals } }
+
+        repository.findByIndex("name", "Ken").shouldContainOnly(ken, bob)
+        repository.findByIndex("money", 10L).shouldContainOnly(ann)
+
+        // Mutation events of the reactive entities update the indexes
+        ken.name = "Ann"
+        testDispatcher.scheduler.advanceUntilIdle()
+        repository.findByIndex("name", "Ken").shouldContainOnly(bob)
+        repository.findByIndex("name", "Ann").shouldContainOnly(ken, ann)
+
+        repository.runForSingle(ann.id) { it.money = 20 } shouldBe true
+        repository.findByIndex("money", 10L).shouldBeEmpty()
+        repository.findByIndex("money", 20L).shouldContainOnly(ann)
+
+        repository.remove(bob) shouldBe true
+        repository.findByIndex("name", "Ken").shouldBeEmpty()
+
+        repository.dropIndex("name") shouldBe true
+        repository.dropIndex("name") shouldBe false
+        shouldThrow<IllegalArgumentException> { repository.findByIndex("name", "Ann") }
+
+        repository.clear()
+        repository.findByIndex("money", 20L).shouldBeEmpty()
+    }
+
+    "Concurrent repository remains consistent when modified from several threads" {
+        val concurrentRepository = VolatileRepository.concurrent<Int, Person>("ConcurrentPersonRepository")
+        concurrentRepository.createIndex("money") { it.money }
+
+        withContext(Dispatchers.Default) {
+            (1..8).map { worker ->
+                launch {
+                    val random = Random(worker)
+                    repeat(5_000) {
+                        val id = random.nextInt(100)
+                        val person = Person(id, "name-${random.nextInt(3)}", random.nextLong(5), true)
+                        when (random.nextInt(5)) {
+                            0 -> concurrentRepository.add(person)
+                            1 -> concurrentRepository.addOrReplace(person)
+                            2 -> concurrentRepository.addOrReplaceAll(setOf(person, person.copy(id = id + 100)))
+                            3 -> concurrentRepository.removeAll(concurrentRepository.search(3) { it.id % 7 == id % 7 })
+                            else -> concurrentRepository.runForMany(setOf(id, id + 1)) { it.money = random.nextLong(5) }
+                        }
+                    }
+                }
+            }.joinAll()
+        }
+
+        val entities = concurrentRepository.search { true }
+        entities.size shouldBe concurrentRepository.size()
+        entities.forEach { person ->
+            concurrentRepository.findByUniqueId(person.uniqueId) shouldBePresent { it shouldBeSameInstanceAs person }
+            concurrentRepository.findByIndex("money", person.money!!) shouldContain person
+        }
+        (0L until 5L).sumOf { concurrentRepository.findByIndex("money", it).size } shouldBe entities.size
+    }
+
+    "Repositories track mutations through a shared bus without creating the publishers of the entities" {
+        val publisherCreationCounter = AtomicInteger(0)
+        val entities = List(10) { LazyTestEntity("entity-$it", publisherCreationCounter) }
+        val busRepository =
+            VolatileRepository<String, LazyTestEntity>("LazyTestRepository").apply {
+                createIndex("value") { it.value }
+                addOrReplaceAll(entities.toSet())
+            }
+
+        entities.forEachIndexed { i, entity -> entity.value = "mutated-$i" }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        publisherCreationCounter.get() shouldBe 0
+        busRepository.findByIndex("value", "mutated-3") shouldBe setOf(entities[3])
+        busRepository.findByIndex("value", "initial") shouldBe emptySet()
+
+        // Detached entities no longer publish their mutations to the repository
+        busRepository.remove(entities[0]) shouldBe true
+        entities[0].value = "after-removal"
+        testDispatcher.scheduler.advanceUntilIdle()
+        busRepository.findByIndex("value", "after-removal") shouldBe emptySet()
+
+        // Closing the repository detaches the entities from its bus
+        busRepository.close()
+        val cloneCounter = AtomicInteger(0)
+        val snapshotEntity = SnapshotTestEntity("snapshot", MutationSnapshot.CLONE, cloneCounter)
+        VolatileRepository<String, SnapshotTestEntity>("ClosedRepository").apply {
+            createIndex("value") { it.value }
+            add(snapshotEntity)
+            close()
+        }
+        snapshotEntity.value = "after-close"
+        cloneCounter.get() shouldBe 0
+    }
+
+    "Repositories only make their entities snapshot mutations while they track them" {
+        val cloneCounter = AtomicInteger(0)
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.CLONE, cloneCounter)
+        val untrackingRepository = VolatileRepository<String, SnapshotTestEntity>("UntrackingRepository").apply { add(entity) }
+
+        entity.value = "untracked"
+        cloneCounter.get() shouldBe 0
+        untrackingRepository.findByUniqueId(entity.uniqueId) shouldBePresent { it shouldBeSameInstanceAs entity }
+
+        untrackingRepository.createIndex("value") { it.value }
+        entity.value = "tracked"
+        testDispatcher.scheduler.advanceUntilIdle()
+        cloneCounter.get() shouldBe 1
+        untrackingRepository.findByIndex("value", "tracked") shouldBe setOf(entity)
+
+        untrackingRepository.dropIndex("value") shouldBe true
+        entity.value = "untracked again"
+        cloneCounter.get() shouldBe 1
+
+        untrackingRepository.close()
+    }
+
+    "Repositories only clone the entities changed by actions run on them" {
+        val cloneCounters = List(10) { AtomicInteger(0) }
+        val entities = List(10) { SnapshotTestEntity("entity-$it", MutationSnapshot.PROPERTY_CHANGES, cloneCounters[it]) }
+        val versionedRepository = VolatileRepository<String, SnapshotTestEntity>("VersionedRepository").apply { addOrReplaceAll(entities.toSet()) }
+        val receivedEvents = mutableListOf<CrudEvent<String, SnapshotTestEntity>>()
+        versionedRepository.subscribe { receivedEvents.add(it) }
+
+        versionedRepository.runForAll { if (it.id == "entity-3") it.value = "changed" } shouldBe true
+        versionedRepository.runForAll { it.value = it.value } shouldBe false
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        cloneCounters.map { it.get() } shouldBe List(10) { if (it == 3) 1 else 0 }
+        val updateEvent = receivedEvents.single()
+        updateEvent.entities.values.single() shouldBe entities[3]
+        updateEvent.oldEntities.values.single().value shouldBe "initial"
+
+        versionedRepository.close()
+    }
+
+    "Indexes declared on properties are only updated by mutations that change them" {
+        val entity = SnapshotTestEntity("snapshot", MutationSnapshot.PROPERTY_CHANGES, AtomicInteger(0))
+        val itemCountExtractions = AtomicInteger(0)
+        val propertyIndexRepository =
+            VolatileRepository<String, SnapshotTestEntity>("PropertyIndexRepository").apply {
+                createIndex("value", setOf("value")) { it.value }
+                createIndex("itemCount", setOf("items")) {
+                    itemCountExtractions.incrementAndGet()
+                    it.items.size
+                }
+                add(entity)
+            }
+        itemCountExtractions.get() shouldBe 1
+
+        entity.value = "indexed"
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        itemCountExtractions.get() shouldBe 1
+        propertyIndexRepository.findByIndex("value", "indexed") shouldBe setOf(entity)
+
+        // Mutations with unknown changes update every index
+        entity.replaceItems(listOf("a", "b"))
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        itemCountExtractions.get() shouldBe 2
+        propertyIndexRepository.findByIndex("itemCount", 2) shouldBe setOf(entity)
+
+        propertyIndexRepository.close()
+    }
+
     "RegistryBase equals handles null and different types" {
         repository.equals(null) shouldBe false
         repository.equals("not a repository") shouldBe false
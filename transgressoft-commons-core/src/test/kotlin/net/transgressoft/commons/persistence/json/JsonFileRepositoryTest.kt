@@ -19,6 +19,7 @@ import io.kotest.engine.spec.tempfile
 import io.kotest.matchers.collections.shouldContainAll
 import io.kotest.matchers.optional.shouldBePresent
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
 import io.kotest.property.arbitrary.next
 import io.mockk.every
 import io.mockk.mockk
@@ -26,6 +27,7 @@ import io.mockk.mockkStatic
 import io.mockk.unmockkAll
 import java.io.File
 import java.io.IOException
+import java.nio.file.Files
 import java.util.Collections
 import java.util.concurrent.ConcurrentHashMap
 import kotlin.collections.forEach
@@ -178,12 +180,63 @@ class JsonFileRepositoryTest: StringSpec({
         jsonFile.readText().shouldEqualJson(expectedRepositoryJson)
     }
 
+    "Writes to a temporary file that replaces the json file" {
+        val tempFile = File(jsonFile.path + ".tmp").also { it.deleteOnExit() }
+        // A leftover of a write interrupted before replacing the json file
+        tempFile.writeText("{ \"1\": ")
+
+        val person = arbitraryPerson().next()
+        repository.add(person) shouldBe true
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        tempFile.exists() shouldBe false
+        PersonJsonFileRepository(jsonFile).findById(person.id) shouldBePresent { it shouldBe person }
+    }
+
     "Rejects invalid json file path" {
         shouldThrow<IllegalArgumentException> {
             PersonJsonFileRepository(File("/does-not-exist.txt"))
         }.message shouldBe "Provided jsonFile does not exist, is not writable or is not a json file"
     }
 
+    "Writes compact json without whitespace" {
+        val jsonFile = tempfile("compact-test", ".json").also { it.deleteOnExit() }
+        val config = JsonRepositoryConfig(format = RepositoryFormat.COMPACT_JSON)
+        val repository = PersonJsonFileRepository(jsonFile, config)
+
+        val person = arbitraryPerson(1).next()
+        repository.add(person) shouldBe true
+        repository.flush()
+
+        jsonFile.readText().lines().size shouldBe 1
+        PersonJsonFileRepository(jsonFile).findById(person.id) shouldBePresent { it shouldBe person }
+        repository.close()
+    }
+
+    "Persists and loads entities in cbor format" {
+        val cborFile = tempfile("cbor-test", ".cbor").also { it.deleteOnExit() }
+        val config = JsonRepositoryConfig(format = RepositoryFormat.CBOR)
+        val repository = PersonJsonFileRepository(cborFile, config)
+
+        val person = arbitraryPerson(1).next()
+        val person2 = arbitraryPerson(2).next()
+        repository.addOrReplaceAll(setOf(person, person2)) shouldBe true
+        repository.flush()
+
+        val reloaded = PersonJsonFileRepository(cborFile, config)
+        reloaded.size() shouldBe 2
+        reloaded.findById(person.id) shouldBePresent { it shouldBe person }
+        reloaded.findById(person2.id) shouldBePresent { it shouldBe person2 }
+
+        shouldThrow<IllegalArgumentException> {
+            PersonJsonFileRepository(jsonFile, config)
+        }.message shouldBe "Provided jsonFile does not exist, is not writable or is not a cbor file"
+
+        reloaded.close()
+        repository.close()
+    }
+
     "Supports switching json file at runtime" {
         val person = arbitraryPerson().next()
         jsonFile.writeText(
@@ -475,7 +528,7 @@ class JsonFileRepositoryTest: StringSpec({
                 every { exists() } returns true
                 every { canWrite() } returns true
                 every { extension } returns "json"
-                every { readText() } returns "{}"
+                every { length() } returns 0L
                 every { name } returns "test.json"
             }
 
@@ -660,4 +713,171 @@ class JsonFileRepositoryTest: StringSpec({
 
         repository.close()
     }
+
+    "Journal mode appends changes to the journal and replays them on load" {
+        val jsonFile = tempfile("journal-test", ".json").also { it.deleteOnExit() }
+        val journalFile = File(jsonFile.path + ".journal").also { it.deleteOnExit() }
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+
+        val person = arbitraryPerson(1).next()
+        val person2 = arbitraryPerson(2).next()
+        repository.add(person) shouldBe true
+        repository.add(person2) shouldBe true
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        person.name = "Journaled"
+        repository.remove(person2) shouldBe true
+
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Changes are appended to the journal without rewriting the json file
+        jsonFile.readText() shouldBe ""
+        journalFile.readLines().size shouldBe 2
+
+        // A change interrupted while being appended is ignored
+        journalFile.appendText("""{"upserts":{"3":{""")
+
+        val reloaded = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+        reloaded.size() shouldBe 1
+        reloaded.findById(person.id) shouldBePresent { it.name shouldBe "Journaled" }
+
+        // Replayed changes are compacted into the json file
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        journalFile.exists() shouldBe false
+        val fromJsonFile = PersonJsonFileRepository(jsonFile)
+        fromJsonFile.size() shouldBe 1
+        fromJsonFile.findById(person.id) shouldBePresent { it.name shouldBe "Journaled" }
+
+        fromJsonFile.close()
+        reloaded.close()
+        repository.close()
+    }
+
+    "Journal mode discards a journal with only an interrupted change on load" {
+        val jsonFile = tempfile("journal-torn-test", ".json").also { it.deleteOnExit() }
+        val journalFile = File(jsonFile.path + ".journal").also { it.deleteOnExit() }
+        journalFile.writeText("""{"upserts":{"3":{""")
+
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+        testDispatcher.scheduler.advanceUntilIdle()
+        journalFile.exists() shouldBe false
+
+        // Later changes are not appended to the interrupted one, so they are replayed
+        val person = arbitraryPerson(1).next()
+        repository.add(person) shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+        journalFile.readLines().size shouldBe 1
+
+        val reloaded = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+        reloaded.findById(person.id) shouldBePresent { it shouldBe person }
+
+        reloaded.close()
+        repository.close()
+    }
+
+    "Journal mode writes the whole repository again after a failed write" {
+        val jsonFile = tempfile("journal-failed-write-test", ".json").also { it.deleteOnExit() }
+        File(jsonFile.path + ".journal").deleteOnExit()
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+        repository.addOrReplaceAll(setOf(arbitraryPerson(1).next(), arbitraryPerson(2).next())) shouldBe true
+        repository.flush()
+
+        mockkStatic(Files::class)
+        every { Files.move(any(), any(), *anyVararg()) } throws IOException("Simulated move failure")
+        repository.clear()
+        testDispatcher.scheduler.advanceUntilIdle()
+        unmockkAll()
+
+        val person = arbitraryPerson(3).next()
+        repository.add(person) shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // The cleared entities are not brought back by a journal appended to the outdated file
+        val reloaded = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal())
+        reloaded.search { true } shouldBe setOf(person)
+
+        reloaded.close()
+        repository.close()
+    }
+
+    "Journal mode compacts the journal into the json file after the threshold and on close" {
+        val jsonFile = tempfile("journal-compaction-test", ".json").also { it.deleteOnExit() }
+        val journalFile = File(jsonFile.path + ".journal").also { it.deleteOnExit() }
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig.withJournal(compactionThreshold = 2))
+
+        repository.add(arbitraryPerson(1).next()) shouldBe true
+        repository.add(arbitraryPerson(2).next()) shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+        journalFile.exists() shouldBe true
+
+        repository.add(arbitraryPerson(3).next()) shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+        journalFile.exists() shouldBe false
+        PersonJsonFileRepository(jsonFile).size() shouldBe 3
+
+        repository.add(arbitraryPerson(4).next()) shouldBe true
+        testDispatcher.scheduler.advanceUntilIdle()
+        journalFile.exists() shouldBe true
+
+        repository.close()
+        journalFile.exists() shouldBe false
+        PersonJsonFileRepository(jsonFile).size() shouldBe 4
+    }
+
+    "Flush writes pending changes without waiting for the flush policy" {
+        val jsonFile = tempfile("flush-test", ".json").also { it.deleteOnExit() }
+        val policy = FlushPolicy(debounceMillis = 60_000, maxLatencyMillis = 60_000)
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig(flushPolicy = policy))
+
+        val person = arbitraryPerson(1).next()
+        repository.add(person) shouldBe true
+        jsonFile.readText() shouldBe ""
+
+        repository.flush()
+
+        PersonJsonFileRepository(jsonFile).findById(person.id) shouldBePresent { it shouldBe person }
+
+        person.name = "Flushed"
+        repository.flushAsync().join()
+
+        PersonJsonFileRepository(jsonFile).findById(person.id) shouldBePresent { it.name shouldBe "Flushed" }
+        repository.close()
+    }
+
+    "Flush policy bounds the latency of changes under sustained mutations" {
+        val jsonFile = tempfile("max-latency-test", ".json").also { it.deleteOnExit() }
+        val policy = FlushPolicy(debounceMillis = 300, maxLatencyMillis = 1_000)
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig(flushPolicy = policy))
+
+        val person = arbitraryPerson(1).next()
+        repository.add(person) shouldBe true
+
+        // Changes keep arriving before the debounce window ends
+        repeat(12) {
+            person.name = "Name-$it"
+            testDispatcher.scheduler.advanceTimeBy(100)
+        }
+
+        jsonFile.readText() shouldNotBe ""
+        repository.close()
+    }
+
+    "Flush policy writes once the maximum number of pending changes is reached" {
+        val jsonFile = tempfile("max-pending-test", ".json").also { it.deleteOnExit() }
+        val policy = FlushPolicy(debounceMillis = 60_000, maxLatencyMillis = 60_000, maxPendingChanges = 3)
+        val repository = PersonJsonFileRepository(jsonFile, JsonRepositoryConfig(flushPolicy = policy))
+
+        repository.add(arbitraryPerson(1).next()) shouldBe true
+        repository.add(arbitraryPerson(2).next()) shouldBe true
+        testDispatcher.scheduler.runCurrent()
+        jsonFile.readText() shouldBe ""
+
+        repository.add(arbitraryPerson(3).next()) shouldBe true
+        testDispatcher.scheduler.runCurrent()
+        PersonJsonFileRepository(jsonFile).size() shouldBe 3
+
+        repository.close()
+    }
 })
\ No newline at end of file
@@ -0,0 +1,171 @@
+package net.transgressoft.commons.persistence.json
+
+import net.transgressoft.commons.Human
+import net.transgressoft.commons.Person
+import net.transgressoft.commons.Personly
+import net.transgressoft.commons.PersonlySerializer
+import net.transgressoft.commons.arbitraryPerson
+import net.transgressoft.commons.event.CrudEvent
+import net.transgressoft.commons.event.ReactiveScope
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.engine.spec.tempdir
+import io.kotest.matchers.optional.shouldBePresent
+import io.kotest.matchers.shouldBe
+import io.kotest.property.arbitrary.next
+import java.io.File
+import kotlin.random.Random
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.builtins.MapSerializer
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.modules.SerializersModule
+import kotlinx.serialization.modules.polymorphic
+
+@ExperimentalCoroutinesApi
+class ShardedJsonFileRepositoryTest: StringSpec({
+
+    val testDispatcher = UnconfinedTestDispatcher()
+    val testScope = CoroutineScope(testDispatcher)
+
+    fun shardedRepository(directory: File, shardCount: Int = 4) =
+        ShardedJsonFileRepository(
+            directory,
+            shardCount,
+            MapSerializer(Int.serializer(), PersonlySerializer()),
+            SerializersModule {
+                polymorphic(Human::class) {
+                    subclass(Person::class, Person.serializer())
+                }
+            }
+        )
+
+    beforeSpec {
+        ReactiveScope.flowScope = testScope
+        ReactiveScope.ioScope = testScope
+    }
+
+    afterSpec {
+        ReactiveScope.resetDefaultIoScope()
+        ReactiveScope.resetDefaultFlowScope()
+    }
+
+    "Partitions entities across shard files and loads them back" {
+        val directory = tempdir()
+        val repository = shardedRepository(directory)
+
+        val persons = (1..20).map { arbitraryPerson(it).next() }
+        repository.addOrReplaceAll(persons.toSet()) shouldBe true
+        repository.flush()
+
+        directory.listFiles()!!.map { it.name }.sorted() shouldBe listOf("shard-0.json", "shard-1.json", "shard-2.json", "shard-3.json")
+
+        val reloaded = shardedRepository(directory)
+        reloaded.size() shouldBe 20
+        persons.forEach { person ->
+            reloaded.findById(person.id) shouldBePresent { it shouldBe person }
+        }
+
+        reloaded.close()
+        repository.close()
+    }
+
+    "Rewrites only the shards of the changed entities" {
+        val directory = tempdir()
+        val repository = shardedRepository(directory)
+
+        val persons = (1..20).map { arbitraryPerson(it).next() }
+        repository.addOrReplaceAll(persons.toSet()) shouldBe true
+        repository.flush()
+
+        val contentsBefore = directory.listFiles()!!.associate { it.name to it.readText() }
+
+        persons[0].name = "Mutated"
+        repository.remove(persons[1]) shouldBe true
+        repository.flush()
+
+        val changedShards = directory.listFiles()!!.filter { it.readText() != contentsBefore[it.name] }.map { it.name }.toSet()
+        changedShards shouldBe setOf("shard-${persons[0].id % 4}.json", "shard-${persons[1].id % 4}.json")
+
+        val reloaded = shardedRepository(directory)
+        reloaded.findById(persons[0].id) shouldBePresent { it.name shouldBe "Mutated" }
+        reloaded.contains(persons[1].id) shouldBe false
+
+        reloaded.close()
+        repository.close()
+    }
+
+    "Writes only the shards with changes when closed" {
+        val directory = tempdir()
+        val repository = shardedRepository(directory)
+
+        val persons = (1..20).map { arbitraryPerson(it).next() }
+        repository.addOrReplaceAll(persons.toSet()) shouldBe true
+        repository.flush()
+        directory.listFiles()!!.forEach { it.setLastModified(0L) }
+
+        persons[0].name = "Mutated"
+        repository.close()
+
+        val writtenShards = directory.listFiles()!!.filter { it.lastModified() != 0L }.map { it.name }
+        writtenShards shouldBe listOf("shard-${persons[0].id % 4}.json")
+    }
+
+    "Shard files hold the same entities as the repository after concurrent changes" {
+        val directory = tempdir()
+        val repository = shardedRepository(directory)
+
+        withContext(Dispatchers.Default) {
+            (1..8).map { worker ->
+                launch {
+                    val random = Random(worker)
+                    repeat(2_000) {
+                        val id = random.nextInt(100)
+                        val person = Person(id, "name-${random.nextInt(3)}", random.nextLong(5), true)
+                        when (random.nextInt(4)) {
+                            0 -> repository.add(person)
+                            1 -> repository.addOrReplace(person)
+                            2 -> repository.findById(id).ifPresent { repository.remove(it) }
+                            else -> repository.runForSingle(id) { it.money = random.nextLong(5) }
+                        }
+                    }
+                }
+            }.joinAll()
+        }
+        repository.flush()
+
+        val reloaded = shardedRepository(directory)
+        reloaded.search { true } shouldBe repository.search { true }
+
+        reloaded.close()
+        repository.close()
+    }
+
+    "Publishes events of the entities in any shard" {
+        val directory = tempdir()
+        val repository = shardedRepository(directory)
+        val events = mutableListOf<CrudEvent.Type>()
+        repository.subscribe { events.add(it.type) }
+
+        val person = arbitraryPerson(1).next()
+        repository.add(person) shouldBe true
+        repository.remove(person) shouldBe true
+
+        events shouldBe listOf(CrudEvent.Type.CREATE, CrudEvent.Type.DELETE)
+        repository.close()
+    }
+
+    "Rejects a directory with shards of a repository with more shards" {
+        val directory = tempdir()
+        shardedRepository(directory, 8).close()
+
+        shouldThrow<IllegalArgumentException> {
+            shardedRepository(directory, 4)
+        }.message shouldBe "Provided directory contains shards of a repository with more than 4 shards"
+    }
+})